@@ -0,0 +1,333 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An AsyncFilePageStore is a random access storage of pages, stored in a
+ * native file accessed through an AsynchronousFileChannel. Blocking reads and
+ * writes wait for the asynchronous operations to complete.
+ */
+public class AsyncFilePageStore implements AsyncPageStore
+{
+	private final static boolean DEBUG = false;
+
+	private final AsynchronousFileChannel mChannel;
+	private final AtomicLong mLength;
+	private final File mFile;
+	private final boolean mReadOnly;
+	private int mPageSize;
+
+
+	/**
+	 * Opens an existing PageStore file or creates a new PageStore file.
+	 *
+	 * @param aFile
+	 *   the destination file.
+	 * @param aReadOnly
+	 *   true if reading only from file.
+	 * @param aPageSize
+	 *   the size of a page.
+	 */
+	public AsyncFilePageStore(File aFile, boolean aReadOnly, int aPageSize) throws IOException
+	{
+		mFile = aFile;
+		mReadOnly = aReadOnly;
+		mPageSize = aPageSize;
+
+		if (mReadOnly)
+		{
+			mChannel = AsynchronousFileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+		}
+		else
+		{
+			mChannel = AsynchronousFileChannel.open(mFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		}
+
+		mLength = new AtomicLong(mChannel.size());
+	}
+
+
+	@Override
+	public CompletableFuture<ByteBuffer> readAsync(long aPageIndex, ByteBuffer aBuffer)
+	{
+		if (DEBUG) System.out.println("readAsync(page="+aPageIndex+", buffer="+aBuffer+")");
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+
+		Transfer transfer = new Transfer(aBuffer, false);
+
+		if (aBuffer.remaining() % mPageSize != 0)
+		{
+			transfer.mFuture.completeExceptionally(new IOException("Input buffer has illegal size: " + aBuffer.remaining()));
+		}
+		else
+		{
+			transfer.start(aPageIndex * mPageSize);
+		}
+
+		return transfer.mFuture;
+	}
+
+
+	@Override
+	public CompletableFuture<ByteBuffer> writeAsync(long aPageIndex, ByteBuffer aBuffer)
+	{
+		if (DEBUG) System.out.println("writeAsync(page="+aPageIndex+", buffer="+aBuffer+")");
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+
+		Transfer transfer = new Transfer(aBuffer, true);
+
+		if (aBuffer.remaining() % mPageSize != 0)
+		{
+			transfer.mFuture.completeExceptionally(new IOException("Input buffer has illegal size: " + aBuffer.remaining()+", page-size: "+mPageSize));
+		}
+		else if (mReadOnly)
+		{
+			transfer.mFuture.completeExceptionally(new IOException("PageStore is read only."));
+		}
+		else
+		{
+			transfer.start(aPageIndex * mPageSize);
+		}
+
+		return transfer.mFuture;
+	}
+
+
+	/**
+	 * Repeats a read or write until the buffer has no remaining bytes.
+	 */
+	private class Transfer implements CompletionHandler<Integer,Long>
+	{
+		final CompletableFuture<ByteBuffer> mFuture = new CompletableFuture<>();
+		final ByteBuffer mBuffer;
+		final boolean mWrite;
+
+
+		Transfer(ByteBuffer aBuffer, boolean aWrite)
+		{
+			mBuffer = aBuffer;
+			mWrite = aWrite;
+		}
+
+
+		void start(long aPosition)
+		{
+			try
+			{
+				if (mWrite)
+				{
+					mChannel.write(mBuffer, aPosition, aPosition, this);
+				}
+				else
+				{
+					mChannel.read(mBuffer, aPosition, aPosition, this);
+				}
+			}
+			catch (Throwable e)
+			{
+				mFuture.completeExceptionally(e);
+			}
+		}
+
+
+		@Override
+		public void completed(Integer aCount, Long aPosition)
+		{
+			if (aCount < 0)
+			{
+				while (mBuffer.hasRemaining())
+				{
+					mBuffer.put((byte)0);
+				}
+			}
+
+			if (mBuffer.hasRemaining())
+			{
+				start(aPosition + aCount);
+			}
+			else
+			{
+				if (mWrite)
+				{
+					mLength.accumulateAndGet(aPosition + aCount, Math::max);
+				}
+				mFuture.complete(mBuffer);
+			}
+		}
+
+
+		@Override
+		public void failed(Throwable aException, Long aPosition)
+		{
+			mFuture.completeExceptionally(aException);
+		}
+	}
+
+
+	/**
+	 * Waits for an asynchronous operation to complete, rethrowing its failure.
+	 */
+	static <T> T await(CompletableFuture<T> aFuture) throws IOException
+	{
+		try
+		{
+			return aFuture.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		long pageCount = getPageCount();
+		if (aPageIndex > pageCount)
+		{
+			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " + pageCount);
+		}
+
+		await(readAsync(aPageIndex, ByteBuffer.wrap(aBuffer, aOffset, aLength)));
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aLength < 0 || aOffset+aLength > aBuffer.length)
+		{
+			throw new IllegalArgumentException("Index out of bounds: buffer offset: "+aOffset+", buffer length: "+aBuffer.length+", write: "+aLength);
+		}
+
+		await(writeAsync(aPageIndex, ByteBuffer.wrap(aBuffer, aOffset, aLength)));
+	}
+
+
+	/**
+	 * Writes consecutive pages to the PageStore with all writes in flight at
+	 * once.
+	 */
+	@Override
+	public void write(long aPageIndex, byte [][] aBuffers) throws IOException
+	{
+		ArrayList<CompletableFuture<ByteBuffer>> writes = new ArrayList<>();
+
+		for (int i = 0; i < aBuffers.length; i++)
+		{
+			writes.add(writeAsync(aPageIndex + i, ByteBuffer.wrap(aBuffers[i])));
+		}
+
+		for (CompletableFuture<ByteBuffer> write : writes)
+		{
+			await(write);
+		}
+	}
+
+
+	@Override
+	public long getPageCount() throws IOException
+	{
+		return mLength.get() / mPageSize;
+	}
+
+
+	@Override
+	public int getPageSize()
+	{
+		return mPageSize;
+	}
+
+
+	@Override
+	public void setPageSize(int aPageSize)
+	{
+		mPageSize = aPageSize;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		mChannel.close();
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+		mChannel.force(true);
+	}
+
+
+	@Override
+	public void truncate(long aPageCount) throws IOException
+	{
+		if (aPageCount < 0)
+		{
+			throw new IllegalArgumentException("Negative page count: " + aPageCount);
+		}
+
+		if (aPageCount < getPageCount())
+		{
+			mChannel.truncate(aPageCount * mPageSize);
+			mLength.set(aPageCount * mPageSize);
+		}
+	}
+
+
+	@Override
+	public boolean isTruncateSupported()
+	{
+		return true;
+	}
+
+
+	public boolean isReadOnly()
+	{
+		return mReadOnly;
+	}
+}
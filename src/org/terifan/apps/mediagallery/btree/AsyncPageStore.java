@@ -0,0 +1,44 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A PageStore that can read and write pages without blocking the calling
+ * thread, allowing many page reads to be in flight at once. The tree uses the
+ * asynchronous reads to prefetch pages when a PageStore implements this
+ * interface.
+ */
+public interface AsyncPageStore extends PageStore
+{
+	/**
+	 * Reads one or more pages from the PageStore. Pages beyond the end of the
+	 * storage are read as zeros.
+	 *
+	 * @param aPageIndex
+	 *   the first page to read.
+	 * @param aBuffer
+	 *   the destination buffer. The remaining bytes of the buffer must be a
+	 *   multiple of the page size.
+	 * @return
+	 *   a future completed with the buffer provided when all remaining bytes
+	 *   have been read.
+	 */
+	public CompletableFuture<ByteBuffer> readAsync(long aPageIndex, ByteBuffer aBuffer);
+
+
+	/**
+	 * Writes one or more pages to the PageStore.
+	 *
+	 * @param aPageIndex
+	 *   the start page index.
+	 * @param aBuffer
+	 *   the content to be written. The remaining bytes of the buffer must be
+	 *   a multiple of the page size.
+	 * @return
+	 *   a future completed with the buffer provided when all remaining bytes
+	 *   have been written.
+	 */
+	public CompletableFuture<ByteBuffer> writeAsync(long aPageIndex, ByteBuffer aBuffer);
+}
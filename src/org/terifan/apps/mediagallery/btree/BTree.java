@@ -1,8 +1,20 @@
 package org.terifan.apps.mediagallery.btree;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.tree.DefaultMutableTreeNode;
 
 
@@ -11,29 +23,78 @@ public class BTree implements Iterable<DataElement>
 	private long mHeaderSize;
 
 	private int mPageSize;
+	private int mStorePageSize;
 	private int mNextFreePageIndex;
 	private long mFailFastCounter;
 	private TransactionLog mTransactionLog;
+	private Cache<Long,Page> mPageCache;
+	private HashMap<Long,Page> mDirtyPages;
 	private Thread mShutdownHook;
 	private int mMaxKeyLength;
+	private int mMaxInlineContentLength;
+	private ArrayList<Long> mReleasedOverflowPages;
+	private CacheStatistics mStatistics;
+	private ObjectName mStatisticsName;
+	private long mRootPageIndex;
+	private long mFreePageHead;
+	private long mFreePageCount;
+	private long mBlobEnd;
+	private boolean mMetaDirty;
 
 	public static boolean DEBUG;
 
+	private final static int META_VERSION = 1;
+	private final static int META_VERSION_CHECKSUMS = 2;
+	private final static int BLOB_CHUNK_SIZE = 256 << 10;
+
+	/**
+	 * Outcome of moving a page during compaction.
+	 */
+	enum MoveResult
+	{
+		MOVED,
+		UNREFERENCED,
+		NOT_MOVED
+	}
+
 
 	public BTree(PageStore aPageStore) throws IOException, TreeIntegrityException
+	{
+		this(aPageStore, new BTreeOptions());
+	}
+
+
+	public BTree(PageStore aPageStore, BTreeOptions aOptions) throws IOException, TreeIntegrityException
 	{
 		boolean create = aPageStore.getPageCount() == 0;
 
-		mPageSize = aPageStore.getPageSize();
-		mTransactionLog = new TransactionLog(this, aPageStore);
-		mNextFreePageIndex = (int)((mTransactionLog.length()-mHeaderSize) / mPageSize);
-		mMaxKeyLength = Math.min((mPageSize - IndexPage.HEADER_SIZE) / 2 - IndexElement.HEADER_SIZE, 256);
+		mStorePageSize = aPageStore.getPageSize();
+		mPageSize = mStorePageSize;
+		mStatistics = new CacheStatistics(mStorePageSize);
+		mTransactionLog = new TransactionLog(this, aPageStore, aOptions, mStatistics);
+		mPageCache = new Cache<>(aOptions.getPageCacheSize(), new TwoQueueEvictionPolicy<>());
+		mPageCache.addCacheStateListener(mStatistics.createListener());
+		mDirtyPages = new HashMap<>();
+		mReleasedOverflowPages = new ArrayList<>();
+		mNextFreePageIndex = (int)((mTransactionLog.length()-mHeaderSize) / mStorePageSize);
 
 		if (create)
 		{
+			setChecksums(aOptions.isPageChecksums());
+
+			// page zero is reserved for the meta page
+			mNextFreePageIndex = 1;
+			mRootPageIndex = 1;
+			mBlobEnd = 1;
+			mMetaDirty = true;
+
 			mTransactionLog.start();
-			new DataPage(this, null).write();
-			mTransactionLog.commit();
+			new DataPage(this, null).markDirty();
+			commitImpl();
+		}
+		else
+		{
+			readMetaPage();
 		}
 
 		mShutdownHook = new Thread()
@@ -53,6 +114,20 @@ public class BTree implements Iterable<DataElement>
 		};
 
 		Runtime.getRuntime().addShutdownHook(mShutdownHook);
+
+		if (aOptions.getStatisticsName() != null)
+		{
+			try
+			{
+				mStatisticsName = new ObjectName("org.terifan.btree:type=CacheStatistics,name=" + ObjectName.quote(aOptions.getStatisticsName()));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(mStatistics, mStatisticsName);
+			}
+			catch (JMException e)
+			{
+				close();
+				throw new IllegalStateException(e);
+			}
+		}
 	}
 
 
@@ -115,8 +190,23 @@ public class BTree implements Iterable<DataElement>
 	{
 		if (mTransactionLog != null)
 		{
+			if (mStatisticsName != null)
+			{
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(mStatisticsName);
+				}
+				catch (JMException e)
+				{
+					// the bean may have been unregistered by the application
+				}
+				mStatisticsName = null;
+			}
+
 			mTransactionLog.close();
 			mTransactionLog = null;
+			mPageCache.clearQuiet();
+			mStatistics.pagesCleared();
 		}
 	}
 
@@ -149,7 +239,7 @@ public class BTree implements Iterable<DataElement>
 			throw new IllegalStateException("Transaction not started.");
 		}
 
-		mTransactionLog.commit();
+		commitImpl();
 	}
 
 
@@ -165,7 +255,7 @@ public class BTree implements Iterable<DataElement>
 			throw new IllegalStateException("Transaction not started.");
 		}
 
-		mTransactionLog.abort();
+		abortImpl();
 	}
 
 
@@ -180,21 +270,21 @@ public class BTree implements Iterable<DataElement>
 			throw new IllegalStateException("A transaction is started.");
 		}
 
-		long index = mNextFreePageIndex;
+		long index = allocateBlob(aLength);
 
-		mNextFreePageIndex += ((aLength + mPageSize - 1) / mPageSize);
+		mNextFreePageIndex += ((aLength + mStorePageSize - 1) / mStorePageSize);
 
-		if (aLength >= mPageSize)
+		if (aLength >= mStorePageSize)
 		{
-			mTransactionLog.writeDirect(index, aContent, 0, aLength - (aLength % mPageSize));
+			mTransactionLog.writeDirect(index, aContent, 0, aLength - (aLength % mStorePageSize));
 		}
 
-		if ((aLength % mPageSize) > 0)
+		if ((aLength % mStorePageSize) > 0)
 		{
-			byte [] temp = new byte[mPageSize];
-			System.arraycopy(aContent, aLength - (aLength % mPageSize), temp, 0, aLength % mPageSize);
+			byte [] temp = new byte[mStorePageSize];
+			System.arraycopy(aContent, aLength - (aLength % mStorePageSize), temp, 0, aLength % mStorePageSize);
 
-			mTransactionLog.writeDirect(mNextFreePageIndex-1, temp, 0, mPageSize);
+			mTransactionLog.writeDirect(mNextFreePageIndex-1, temp, 0, mStorePageSize);
 		}
 
 		return index;
@@ -212,273 +302,1108 @@ public class BTree implements Iterable<DataElement>
 			throw new IllegalStateException("A transaction is started.");
 		}
 
-		mTransactionLog.readDirect(aPageIndex, aContent, aLength);
+		int length = aLength - aLength % mStorePageSize;
+
+		if (length > 0)
+		{
+			mTransactionLog.readDirect(aPageIndex, aContent, length);
+		}
+
+		if (length < aLength)
+		{
+			byte [] temp = new byte[mStorePageSize];
+
+			mTransactionLog.readDirect(aPageIndex + length / mStorePageSize, temp, mStorePageSize);
+
+			System.arraycopy(temp, 0, aContent, length, aLength - length);
+		}
 	}
 
 
-	@Override
-	public DataElementIterator iterator()
+	/**
+	 * Writes a blob read from a stream. The blob is transferred in chunks of
+	 * whole pages and is never held in memory in full.
+	 *
+	 * @param aInput
+	 *   the content of the blob.
+	 * @param aLength
+	 *   number of bytes read from the stream.
+	 * @return
+	 *   the index of the first page of the blob.
+	 */
+	public long putBlob(InputStream aInput, long aLength) throws IOException, TreeIntegrityException
 	{
 		if (mTransactionLog == null)
 		{
 			throw new IllegalStateException("Tree is closed.");
 		}
+		if (mTransactionLog.isStarted())
+		{
+			throw new IllegalStateException("A transaction is started.");
+		}
+		if (aLength < 0)
+		{
+			throw new IllegalArgumentException("Negative length: " + aLength);
+		}
 
-		Page page = null;
-		long index = 0;
+		long index = allocateBlob(aLength);
+		byte [] buffer = new byte[getBlobChunkSize()];
 
-		try
+		for (long position = 0; position < aLength; )
 		{
-			do
+			int length = (int)Math.min(buffer.length, aLength - position);
+
+			for (int offset = 0; offset < length; )
 			{
-				if (page instanceof IndexPage)
+				int n = aInput.read(buffer, offset, length - offset);
+
+				if (n < 0)
 				{
-					index = ((IndexPage)page).getFirstPageIndex();
+					throw new EOFException("Unexpected end of stream: expected: " + aLength + ", read: " + (position + offset));
 				}
-				page = loadPage((IndexPage)page, index);
-			} while (page instanceof IndexPage);
-		}
-		catch (TreeIntegrityException | IOException e)
-		{
-			throw new IllegalStateException(e);
+
+				offset += n;
+			}
+
+			int pages = (length + mStorePageSize - 1) / mStorePageSize;
+
+			Arrays.fill(buffer, length, pages * mStorePageSize, (byte)0);
+
+			mTransactionLog.writeDirect(index + position / mStorePageSize, buffer, 0, pages * mStorePageSize);
+
+			position += length;
 		}
 
-		return new DataElementIterator(this, page.getPageIndex());
+		// the pages are allocated when the blob is complete, a failed write is overwritten
+		mNextFreePageIndex += (int)((aLength + mStorePageSize - 1) / mStorePageSize);
+
+		return index;
 	}
 
 
-	public DataElementIterator iterator(byte [] aPrefix)
+	/**
+	 * Writes a blob read from a channel.
+	 *
+	 * @see #putBlob(java.io.InputStream, long)
+	 */
+	public long putBlob(ReadableByteChannel aChannel, long aLength) throws IOException, TreeIntegrityException
 	{
-		if (mTransactionLog == null)
+		return putBlob(Channels.newInputStream(aChannel), aLength);
+	}
+
+
+	/**
+	 * Reads a blob to a stream. The blob is transferred in chunks of whole
+	 * pages and is never held in memory in full.<p>
+	 *
+	 * Blobs are read directly from the PageStore without using the caches of
+	 * the tree and several blobs can be read concurrently if the PageStore
+	 * supports concurrent reads.
+	 *
+	 * @param aPageIndex
+	 *   the index of the first page of the blob.
+	 * @param aLength
+	 *   the length of the blob.
+	 * @param aOutput
+	 *   the destination of the content.
+	 */
+	public void getBlob(long aPageIndex, long aLength, OutputStream aOutput) throws IOException, TreeIntegrityException
+	{
+		TransactionLog transactionLog = mTransactionLog;
+
+		if (transactionLog == null)
 		{
 			throw new IllegalStateException("Tree is closed.");
 		}
+		if (aLength < 0)
+		{
+			throw new IllegalArgumentException("Negative length: " + aLength);
+		}
 
-		aPrefix = aPrefix.clone();
-
-		Page page = null;
-		long index = 0;
+		byte [] buffer = new byte[getBlobChunkSize()];
 
-		try
+		for (long position = 0; position < aLength; )
 		{
-			for (;;)
-			{
-				page = loadPage((IndexPage)page, index);
+			int length = (int)Math.min(buffer.length, aLength - position);
+			int pages = (length + mStorePageSize - 1) / mStorePageSize;
 
-				if (page instanceof IndexPage)
-				{
-					IndexPage indexPage = (IndexPage)page;
+			transactionLog.readDirect(aPageIndex + position / mStorePageSize, buffer, pages * mStorePageSize);
 
-					ArrayList<IndexElement> elements = indexPage.getElements();
+			aOutput.write(buffer, 0, length);
 
-					if (compare(aPrefix, elements.get(0).mKey) < 0)
-					{
-						index = indexPage.getFirstPageIndex();
-					}
-					else
-					{
-						for (int i = elements.size(); --i >= 0;)
-						{
-							//System.out.println(new String(aPrefix)+" > "+new String(elements.get(i).mKey));
-
-							if (compare(elements.get(i).mKey, aPrefix) <= 0)
-							{
-								index = elements.get(i).mPageIndex;
-								break;
-							}
-						}
-					}
-				}
-				else
-				{
-					break;
-				}
-			}
-		}
-		catch (TreeIntegrityException | IOException e)
-		{
-			throw new IllegalStateException(e);
+			position += length;
 		}
+	}
 
-		if (page == null)
-		{
-			throw new IllegalStateException("Page is null!");
-		}
 
-		return new DataElementIterator(this, page.getPageIndex(), aPrefix);
+	/**
+	 * Reads a blob to a channel.
+	 *
+	 * @see #getBlob(long, long, java.io.OutputStream)
+	 */
+	public void getBlob(long aPageIndex, long aLength, WritableByteChannel aChannel) throws IOException, TreeIntegrityException
+	{
+		getBlob(aPageIndex, aLength, Channels.newOutputStream(aChannel));
 	}
 
 
-	public void populateJTree(DefaultMutableTreeNode aJTreeNode) throws IOException, TreeIntegrityException
+	/**
+	 * Returns the index of the first page of a new blob. Blobs are appended
+	 * to the file and never released, the end of the last blob is committed
+	 * to the meta page before the blob is written so that compaction never
+	 * touches blob data.
+	 */
+	private long allocateBlob(long aLength) throws IOException
 	{
-		if (mTransactionLog == null)
+		long index = mNextFreePageIndex;
+		long end = index + (aLength + mStorePageSize - 1) / mStorePageSize;
+
+		if (end > mBlobEnd)
 		{
-			throw new IllegalStateException("Tree is closed.");
+			mBlobEnd = end;
+
+			// a file without a meta page records the end when it's converted
+			if (mRootPageIndex != 0)
+			{
+				mMetaDirty = true;
+				mTransactionLog.start();
+
+				try
+				{
+					commitImpl();
+				}
+				catch (Throwable e)
+				{
+					abortImpl();
+					throw e;
+				}
+			}
 		}
 
-		mTransactionLog.start();
-		populateJTreeImpl(null, 0, aJTreeNode);
-		mTransactionLog.abort();
+		return index;
 	}
 
 
-	public int getMaxKeyLength()
+	/**
+	 * Returns the size of the chunks blobs are streamed in, a multiple of the
+	 * page size.
+	 */
+	private int getBlobChunkSize()
 	{
-		return mMaxKeyLength;
+		return Math.max(1, BLOB_CHUNK_SIZE / mStorePageSize) * mStorePageSize;
 	}
 
 
-	private boolean putImpl(byte [] aKey, byte [] aContent) throws IOException, TreeIntegrityException
+	/**
+	 * Performs one step of an online compaction: live pages at the end of the
+	 * file are moved to the lowest free pages and the file is truncated. Each
+	 * call is a separate transaction and writes approximately no more than
+	 * the given number of pages, allowing the compaction to be spread out
+	 * between other operations. The free list is rewritten in ascending order
+	 * so that following allocations use the beginning of the file, which
+	 * adds a write for every free page with a changed link, mostly on the
+	 * first call.<p>
+	 *
+	 * Pages after the committed page count, left by an interrupted commit,
+	 * are truncated without being read, and pages the tree doesn't refer to
+	 * are dropped like free pages. Compaction stops at the end of the last
+	 * blob since blobs are never moved, and doesn't apply to files whose
+	 * root is still at page zero or to PageStores that can't be truncated.
+	 *
+	 * @param aMaxWrites
+	 *   approximate maximum number of pages written, at least one page is
+	 *   moved if possible.
+	 * @return
+	 *   true if more pages can be moved by a following call.
+	 */
+	public boolean vacuum(int aMaxWrites) throws IOException, TreeIntegrityException
 	{
-		DataElement dataElement = new DataElement(aKey, aContent);
-
-		if (dataElement.size() > mPageSize-DataPage.HEADER_SIZE)
+		if (mTransactionLog == null)
 		{
-			throw new IOException("Supplied element exceeds maximum size: size: " + dataElement.size() + ", max-size: " + (mPageSize-DataPage.HEADER_SIZE));
+			throw new IllegalStateException("Tree is closed.");
 		}
-		if (aKey.length >= mMaxKeyLength)
+		if (mTransactionLog.isStarted())
 		{
-			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+			throw new IllegalStateException("A transaction is started.");
 		}
-
-		boolean externalTransaction = mTransactionLog.isStarted();
-		if (!externalTransaction)
+		// moved pages would remain at the end of a file that can't be truncated
+		if (mRootPageIndex == 0 || !mTransactionLog.isTruncateSupported())
 		{
-			mTransactionLog.start();
+			return false;
 		}
 
+		mTransactionLog.start();
+
 		try
 		{
 			mFailFastCounter++;
 
-			Page root = loadPage(null, 0);
-
-			boolean state = root.remove(null, dataElement) == 1;
+			boolean more = vacuumImpl(aMaxWrites);
 
-			dataElement.mContent = aContent;
-			root.put(dataElement);
+			commitImpl();
 
-			if (!externalTransaction)
+			if (mNextFreePageIndex < mTransactionLog.length() / mStorePageSize)
 			{
-				mTransactionLog.commit();
+				mTransactionLog.truncate(mNextFreePageIndex);
 			}
 
-			return state;
+			return more;
 		}
 		catch (Throwable e)
 		{
-			mTransactionLog.abort();
-			throw new IllegalStateException(e);
+			abortImpl();
+			throw e;
 		}
 	}
 
 
-	private int getImpl(byte [] aKey, byte [] aContent) throws IOException, TreeIntegrityException
+	private boolean vacuumImpl(int aMaxWrites) throws IOException, TreeIntegrityException
 	{
-		if (aKey.length >= mMaxKeyLength)
+		TreeSet<Long> free = new TreeSet<>();
+		HashMap<Long,Long> links = new HashMap<>();
+
+		for (long pageIndex = mFreePageHead; pageIndex != 0;)
 		{
-			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+			ByteBuffer buffer = ByteBuffer.wrap(mTransactionLog.read(pageIndex));
+
+			if (buffer.getUnsignedByte() != 'X' || !free.add(pageIndex))
+			{
+				throw new TreeIntegrityException("Free list refers to a page in use: page index: " + pageIndex);
+			}
+
+			long next = buffer.getNumber(5);
+			links.put(pageIndex, next);
+			pageIndex = next;
 		}
 
-		DataElement dataElement = new DataElement(aKey, null);
+		long pageCount = mNextFreePageIndex;
+		boolean more = false;
 
-		if (loadPage(null, 0).get(dataElement))
+		for (int moved = 0; pageCount > 1; )
 		{
-			if (aContent != null)
+			long last = pageCount - 1;
+
+			if (free.remove(last))
 			{
-				if (aContent.length < dataElement.mContent.length)
-				{
-					throw new IllegalArgumentException("Supplied buffer is to small: size: " + aContent.length + ", required: " + dataElement.mContent.length);
-				}
+				pageCount--;
+				continue;
+			}
+			if (last < mBlobEnd)
+			{
+				break;
+			}
 
-				System.arraycopy(dataElement.mContent, 0, aContent, 0, dataElement.mContent.length);
+			// a move writes the page, its parent and up to two neighbours
+			if (moved > 0 && mDirtyPages.size() + mTransactionLog.getPendingPageCount() + 4 > aMaxWrites)
+			{
+				more = true;
+				break;
 			}
 
-			return dataElement.mContent.length;
-		}
+			long target = free.isEmpty() ? 0 : free.first();
 
-		return 0;
-	}
+			MoveResult result = movePage(last, target);
 
+			// a page not referenced by the tree is dropped like a free page
+			if (result == MoveResult.UNREFERENCED)
+			{
+				pageCount--;
+				continue;
+			}
+			if (result == MoveResult.NOT_MOVED)
+			{
+				break;
+			}
 
-	private boolean containsKeyImpl(byte [] aKey) throws IOException, TreeIntegrityException
-	{
-		if (aKey.length >= mMaxKeyLength)
+			free.remove(target);
+			pageCount--;
+			moved++;
+		}
+
+		// rebuild the free list in ascending order, only pages with a changed link are written
+		long next = 0;
+		for (Long pageIndex : free.descendingSet())
 		{
-			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+			if (links.get(pageIndex) != next)
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(mPageSize);
+				buffer.put('X');
+				buffer.putNumber(next, 5);
+				mTransactionLog.write(pageIndex, buffer.array());
+			}
+			next = pageIndex;
 		}
 
-		DataElement dataElement = new DataElement(aKey, null);
+		mFreePageHead = next;
+		mFreePageCount = free.size();
+		mNextFreePageIndex = (int)pageCount;
+		mBlobEnd = Math.min(mBlobEnd, pageCount);
+		mMetaDirty = true;
 
-		return loadPage(null, 0).get(dataElement);
+		return more;
 	}
 
 
-	private boolean removeImpl(byte [] aKey) throws IOException, TreeIntegrityException
+	/**
+	 * Moves a page of the tree to another page index updating the pointer in
+	 * the parent page and the links of neighbouring data pages. Pages after
+	 * the last blob are either free or belong to the tree, pages the tree
+	 * doesn't refer to were left by an interrupted commit.
+	 *
+	 * @param aToPageIndex
+	 *   the new index of the page or zero if there is no free page, in which
+	 *   case the page is only tested for being referenced.
+	 */
+	private MoveResult movePage(long aFromPageIndex, long aToPageIndex) throws IOException, TreeIntegrityException
 	{
-		if (aKey.length >= mMaxKeyLength)
+		// pages moved by this transaction aren't written until commit
+		Page page = mDirtyPages.get(aFromPageIndex);
+
+		if (page == null)
 		{
-			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
-		}
+			byte [] buffer = mTransactionLog.read(aFromPageIndex);
 
-		DataElement dataElement = new DataElement(aKey, null);
+			switch (buffer[0])
+			{
+				case 'i':
+				case 'I':
+				case 'd':
+				case 'D':
+					break;
+				case 'O':
+					return OverflowChain.move(this, aFromPageIndex, aToPageIndex);
+				case 'X':
+					// free pages are on the free list
+					return MoveResult.UNREFERENCED;
+				default:
+					throw new TreeIntegrityException("Bad page header: page index: " + aFromPageIndex);
+			}
 
-		boolean externalTransaction = mTransactionLog.isStarted();
-		if (!externalTransaction)
+			page = loadPage(null, aFromPageIndex);
+		}
+		else if (page.mTerminated)
 		{
-			mTransactionLog.start();
+			return MoveResult.NOT_MOVED;
 		}
 
-		try
-		{
-			mFailFastCounter++;
+		IndexPage parent = null;
 
-			boolean r = loadPage(null, 0).remove(null, dataElement) == 1;
+		if (aFromPageIndex != mRootPageIndex)
+		{
+			byte [] key;
+			if (page instanceof DataPage && !((DataPage)page).getElements().isEmpty())
+			{
+				key = ((DataPage)page).getElements().get(0).getKey();
+			}
+			else if (page instanceof IndexPage && !((IndexPage)page).getElements().isEmpty())
+			{
+				key = ((IndexPage)page).getElements().get(0).mKey;
+			}
+			else
+			{
+				return MoveResult.NOT_MOVED;
+			}
 
-			if (!externalTransaction)
+			// the parent is found by searching for a key of the page
+			for (Page node = loadPage(null, mRootPageIndex); node instanceof IndexPage;)
 			{
-				mTransactionLog.commit();
+				long child = ((IndexPage)node).findChildPageIndex(key);
+
+				if (child == aFromPageIndex)
+				{
+					parent = (IndexPage)node;
+					break;
+				}
+
+				node = loadPage((IndexPage)node, child);
 			}
 
-			return r;
+			if (parent == null)
+			{
+				mPageCache.remove(aFromPageIndex);
+				return MoveResult.UNREFERENCED;
+			}
 		}
-		catch (Throwable e)
+
+		if (aToPageIndex == 0)
 		{
-			mTransactionLog.abort();
-			throw new IllegalStateException(e);
+			return MoveResult.NOT_MOVED;
 		}
-	}
 
+		mDirtyPages.remove(aFromPageIndex);
+		mPageCache.remove(aFromPageIndex);
 
-	Page loadPage(IndexPage aParent, long aPageIndex) throws IOException, TreeIntegrityException
-	{
-		ByteBuffer buffer = ByteBuffer.allocate(getPageSize());
+		page.mPageIndex = aToPageIndex;
+		page.mParent = parent;
+		page.markDirty();
 
-		getTransactionLog().read(aPageIndex, buffer.array());
+		if (parent == null)
+		{
+			mRootPageIndex = aToPageIndex;
+			mMetaDirty = true;
+		}
+		else
+		{
+			parent.relocateChild(aFromPageIndex, aToPageIndex);
+		}
 
-		switch (buffer.getUnsignedByte())
+		if (page instanceof DataPage)
 		{
-			case 'I':
-				return new IndexPage(this, aParent, aPageIndex, buffer);
-			case 'D':
-				return new DataPage(this, aParent, aPageIndex, buffer);
-			case 'X':
-				throw new TreeIntegrityException("Attemp to load a terminated page: page index: " + aPageIndex);
-			default:
-				throw new TreeIntegrityException("Bad page header: page index: " + aPageIndex);
+			((DataPage)page).relocateLinks();
 		}
+
+		return MoveResult.MOVED;
 	}
 
 
-	private void populateJTreeImpl(IndexPage aParent, long aIndex, DefaultMutableTreeNode aJTreeNode) throws IOException, TreeIntegrityException
+	@Override
+	public DataElementIterator iterator()
 	{
-		Page page = loadPage(aParent, aIndex);
-
-		if (page instanceof IndexPage)
+		if (mTransactionLog == null)
 		{
-			DefaultMutableTreeNode newJTreePage = new DefaultMutableTreeNode("["+((IndexPage)page).getFirstPageIndex()+"]");
-			aJTreeNode.add(newJTreePage);
-
+			throw new IllegalStateException("Tree is closed.");
+		}
+
+		Page page = null;
+		IndexPage parent = null;
+		ArrayList<IndexPage> path = new ArrayList<>();
+		long index = mRootPageIndex;
+
+		try
+		{
+			do
+			{
+				if (page instanceof IndexPage)
+				{
+					parent = (IndexPage)page;
+					path.add(parent);
+					index = parent.getFirstPageIndex();
+				}
+				page = loadPage(parent, index);
+			} while (page instanceof IndexPage);
+		}
+		catch (TreeIntegrityException | IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		DataElementIterator iterator = new DataElementIterator(this, page.getPageIndex());
+		iterator.setPath(path.toArray(new IndexPage[path.size()]), new int[path.size()]);
+		return iterator;
+	}
+
+
+	public DataElementIterator iterator(byte [] aPrefix)
+	{
+		if (mTransactionLog == null)
+		{
+			throw new IllegalStateException("Tree is closed.");
+		}
+
+		aPrefix = aPrefix.clone();
+
+		Page page = null;
+		IndexPage parent = null;
+		ArrayList<IndexPage> path = new ArrayList<>();
+		int [] children = new int[0];
+		long index = mRootPageIndex;
+
+		try
+		{
+			for (;;)
+			{
+				page = loadPage(parent, index);
+
+				if (page instanceof IndexPage)
+				{
+					parent = (IndexPage)page;
+					path.add(parent);
+					children = Arrays.copyOf(children, path.size());
+					children[path.size() - 1] = parent.findElement(aPrefix) + 1;
+					index = parent.findChildPageIndex(aPrefix);
+				}
+				else
+				{
+					break;
+				}
+			}
+		}
+		catch (TreeIntegrityException | IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		if (page == null)
+		{
+			throw new IllegalStateException("Page is null!");
+		}
+
+		DataElementIterator iterator = new DataElementIterator(this, page.getPageIndex(), aPrefix);
+		iterator.setPath(path.toArray(new IndexPage[path.size()]), children);
+		return iterator;
+	}
+
+
+	public void populateJTree(DefaultMutableTreeNode aJTreeNode) throws IOException, TreeIntegrityException
+	{
+		if (mTransactionLog == null)
+		{
+			throw new IllegalStateException("Tree is closed.");
+		}
+
+		mTransactionLog.start();
+		populateJTreeImpl(null, mRootPageIndex, aJTreeNode);
+		abortImpl();
+	}
+
+
+	public int getMaxKeyLength()
+	{
+		return mMaxKeyLength;
+	}
+
+
+	/**
+	 * Changes the capacity in bytes of the cache holding raw pages read from
+	 * the PageStore. Pages are evicted immediately when the cache shrinks.
+	 */
+	public void setBlockCacheSize(long aSize)
+	{
+		if (mTransactionLog == null)
+		{
+			throw new IllegalStateException("Tree is closed.");
+		}
+
+		mTransactionLog.setCacheSize(aSize);
+	}
+
+
+	public long getBlockCacheSize()
+	{
+		if (mTransactionLog == null)
+		{
+			throw new IllegalStateException("Tree is closed.");
+		}
+
+		return mTransactionLog.getCacheSize();
+	}
+
+
+	/**
+	 * Changes the capacity in bytes of the cache holding decoded pages.
+	 */
+	public void setPageCacheSize(long aSize)
+	{
+		mPageCache.setCapacity(aSize);
+	}
+
+
+	public long getPageCacheSize()
+	{
+		return mPageCache.getCapacity();
+	}
+
+
+	/**
+	 * Returns the counters of the page caches of this tree. The same instance
+	 * is published as an MBean when a statistics name is given in the
+	 * BTreeOptions.
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return mStatistics;
+	}
+
+
+	private boolean putImpl(byte [] aKey, byte [] aContent) throws IOException, TreeIntegrityException
+	{
+		// decoded pages stay in the page cache until commit and must not share
+		// arrays the caller may reuse
+		aKey = aKey.clone();
+
+		DataElement dataElement = new DataElement(aKey, null);
+
+		if (aKey.length >= mMaxKeyLength)
+		{
+			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+		}
+
+		boolean externalTransaction = mTransactionLog.isStarted();
+		if (!externalTransaction)
+		{
+			mTransactionLog.start();
+		}
+
+		try
+		{
+			mFailFastCounter++;
+
+			Page root = loadPage(null, mRootPageIndex);
+
+			boolean state = root.remove(null, dataElement) == 1;
+
+			releaseOverflow(dataElement);
+
+			dataElement.mContent = null;
+			dataElement.mOverflowPageIndex = 0;
+
+			if (aContent.length > mMaxInlineContentLength)
+			{
+				dataElement.mOverflowLength = aContent.length;
+				dataElement.mOverflowPageIndex = OverflowChain.write(this, aKey, aContent);
+			}
+			else
+			{
+				dataElement.mContent = aContent.clone();
+			}
+
+			root.put(dataElement);
+
+			if (!externalTransaction)
+			{
+				commitImpl();
+			}
+
+			return state;
+		}
+		catch (Throwable e)
+		{
+			abortImpl();
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	private int getImpl(byte [] aKey, byte [] aContent) throws IOException, TreeIntegrityException
+	{
+		if (aKey.length >= mMaxKeyLength)
+		{
+			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+		}
+
+		return Math.max(findContent(aKey, aContent), 0);
+	}
+
+
+	private boolean containsKeyImpl(byte [] aKey) throws IOException, TreeIntegrityException
+	{
+		if (aKey.length >= mMaxKeyLength)
+		{
+			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+		}
+
+		return findContent(aKey, null) >= 0;
+	}
+
+
+	/**
+	 * Finds the content of a key and copies it to the buffer provided. Index
+	 * pages are walked in their decoded form. A data page that isn't already
+	 * decoded is searched in the page bytes held by the transaction log and
+	 * only the matching content is copied, no elements are allocated.
+	 *
+	 * @param aContent
+	 *   destination buffer or null if only the length is requested.
+	 * @return
+	 *   the length of the content or -1 if the key doesn't exist.
+	 */
+	private int findContent(byte [] aKey, byte [] aContent) throws IOException, TreeIntegrityException
+	{
+		IndexPage parent = null;
+		long pageIndex = mRootPageIndex;
+
+		for (;;)
+		{
+			Page page = getCachedPage(pageIndex, false);
+
+			if (page == null)
+			{
+				byte [] buffer = mTransactionLog.read(pageIndex);
+
+				mStatistics.miss(CacheStatistics.typeOf(buffer));
+
+				if (buffer[0] == 'd')
+				{
+					int offset = DataPage.findContent(buffer, aKey);
+
+					if (offset == -1)
+					{
+						return -1;
+					}
+
+					int length = ((buffer[offset] & 255) << 8) + (buffer[offset + 1] & 255);
+
+					if (length == DataElement.OVERFLOW)
+					{
+						ByteBuffer reference = ByteBuffer.wrap(buffer).position(offset + 2);
+						DataElement element = new DataElement(aKey, null);
+						element.mOverflowLength = reference.getInt();
+						element.mOverflowPageIndex = reference.getNumber(5);
+
+						return copyOverflow(element, aContent);
+					}
+
+					return copyContent(buffer, offset + 2, length, aContent);
+				}
+
+				page = decodePage(parent, pageIndex, buffer, false);
+			}
+
+			if (page instanceof DataPage)
+			{
+				DataPage dataPage = (DataPage)page;
+
+				int index = dataPage.indexOf(aKey);
+
+				if (index < 0)
+				{
+					return -1;
+				}
+
+				DataElement element = dataPage.getElements().get(index);
+
+				if (element.isOverflow())
+				{
+					return copyOverflow(element, aContent);
+				}
+
+				return copyContent(element.mContent, 0, element.mContent.length, aContent);
+			}
+
+			parent = (IndexPage)page;
+			pageIndex = parent.findChildPageIndex(aKey);
+		}
+	}
+
+
+	private static int copyContent(byte [] aSource, int aOffset, int aLength, byte [] aContent)
+	{
+		if (aContent != null)
+		{
+			if (aContent.length < aLength)
+			{
+				throw new IllegalArgumentException("Supplied buffer is to small: size: " + aContent.length + ", required: " + aLength);
+			}
+
+			System.arraycopy(aSource, aOffset, aContent, 0, aLength);
+		}
+
+		return aLength;
+	}
+
+
+	private int copyOverflow(DataElement aDataElement, byte [] aContent) throws IOException
+	{
+		if (aContent != null)
+		{
+			if (aContent.length < aDataElement.mOverflowLength)
+			{
+				throw new IllegalArgumentException("Supplied buffer is to small: size: " + aContent.length + ", required: " + aDataElement.mOverflowLength);
+			}
+
+			OverflowChain.read(this, aDataElement, aContent);
+		}
+
+		return aDataElement.mOverflowLength;
+	}
+
+
+	/**
+	 * Returns the content of an element, reading it from the overflow pages
+	 * if it isn't stored in the element.
+	 */
+	byte [] getContent(DataElement aDataElement) throws IOException
+	{
+		if (!aDataElement.isOverflow())
+		{
+			return aDataElement.mContent;
+		}
+
+		byte [] content = new byte[aDataElement.mOverflowLength];
+
+		OverflowChain.read(this, aDataElement, content);
+
+		return content;
+	}
+
+
+	/**
+	 * Releases the overflow pages of an element removed or replaced. The pages
+	 * are added to the free list when the transaction commits.
+	 */
+	private void releaseOverflow(DataElement aDataElement) throws IOException
+	{
+		if (aDataElement.isOverflow())
+		{
+			mReleasedOverflowPages.addAll(OverflowChain.getPages(this, aDataElement));
+		}
+	}
+
+
+	/**
+	 * Updates the element referring to an overflow page that has been moved.
+	 *
+	 * @param aToPageIndex
+	 *   the new index of the page or zero to only test the reference.
+	 * @return
+	 *   false if no element refers to the page.
+	 */
+	boolean relocateOverflow(byte [] aKey, long aFromPageIndex, long aToPageIndex) throws IOException, TreeIntegrityException
+	{
+		Page page = loadPage(null, mRootPageIndex);
+
+		while (page instanceof IndexPage)
+		{
+			page = loadPage((IndexPage)page, ((IndexPage)page).findChildPageIndex(aKey));
+		}
+
+		DataPage dataPage = (DataPage)page;
+		int index = dataPage.indexOf(aKey);
+
+		if (index < 0 || dataPage.getElements().get(index).mOverflowPageIndex != aFromPageIndex)
+		{
+			return false;
+		}
+
+		if (aToPageIndex != 0)
+		{
+			dataPage.getElements().get(index).mOverflowPageIndex = aToPageIndex;
+			dataPage.markDirty();
+		}
+
+		return true;
+	}
+
+
+	private boolean removeImpl(byte [] aKey) throws IOException, TreeIntegrityException
+	{
+		if (aKey.length >= mMaxKeyLength)
+		{
+			throw new IOException("Supplied key exceeds maximum size: size: " + aKey.length + ", max-size: " + mMaxKeyLength);
+		}
+
+		DataElement dataElement = new DataElement(aKey, null);
+
+		boolean externalTransaction = mTransactionLog.isStarted();
+		if (!externalTransaction)
+		{
+			mTransactionLog.start();
+		}
+
+		try
+		{
+			mFailFastCounter++;
+
+			boolean r = loadPage(null, mRootPageIndex).remove(null, dataElement) == 1;
+
+			releaseOverflow(dataElement);
+
+			if (!externalTransaction)
+			{
+				commitImpl();
+			}
+
+			return r;
+		}
+		catch (Throwable e)
+		{
+			abortImpl();
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	Page loadPage(IndexPage aParent, long aPageIndex) throws IOException, TreeIntegrityException
+	{
+		return loadPage(aParent, aPageIndex, false);
+	}
+
+
+	/**
+	 * Loads a page, pages loaded with low priority are not promoted in the
+	 * caches and are the first to be evicted, used by scans to avoid flushing
+	 * the index pages.
+	 */
+	Page loadPage(IndexPage aParent, long aPageIndex, boolean aLowPriority) throws IOException, TreeIntegrityException
+	{
+		Page page = getCachedPage(aPageIndex, aLowPriority);
+
+		if (page != null)
+		{
+			page.mParent = aParent;
+			return page;
+		}
+
+		byte [] buffer = mTransactionLog.read(aPageIndex, aLowPriority);
+
+		mStatistics.miss(CacheStatistics.typeOf(buffer));
+
+		return decodePage(aParent, aPageIndex, buffer, aLowPriority);
+	}
+
+
+	/**
+	 * Returns a modified or cached decoded page or null if the page isn't
+	 * decoded.
+	 */
+	private Page getCachedPage(long aPageIndex, boolean aLowPriority) throws TreeIntegrityException
+	{
+		Page page = mDirtyPages.isEmpty() ? null : mDirtyPages.get(aPageIndex);
+
+		if (page != null)
+		{
+			mStatistics.hit(CacheStatistics.PageType.DIRTY);
+		}
+		else
+		{
+			page = mPageCache.get(aPageIndex, aLowPriority);
+
+			if (page != null)
+			{
+				mStatistics.hit(CacheStatistics.typeOf(page));
+			}
+		}
+
+		if (page != null && page.mTerminated)
+		{
+			throw new TreeIntegrityException("Attemp to load a terminated page: page index: " + aPageIndex);
+		}
+
+		return page;
+	}
+
+
+	private Page decodePage(IndexPage aParent, long aPageIndex, byte [] aBuffer, boolean aLowPriority) throws IOException, TreeIntegrityException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(aBuffer);
+
+		Page page;
+
+		switch (buffer.getUnsignedByte())
+		{
+			case 'i':
+			case 'I':
+				page = new IndexPage(this, aParent, aPageIndex, buffer);
+				break;
+			case 'd':
+			case 'D':
+				page = new DataPage(this, aParent, aPageIndex, buffer);
+				break;
+			case 'X':
+				throw new TreeIntegrityException("Attemp to load a terminated page: page index: " + aPageIndex);
+			default:
+				throw new TreeIntegrityException("Bad page header: page index: " + aPageIndex);
+		}
+
+		mPageCache.put(aPageIndex, page, mPageSize, aLowPriority);
+
+		return page;
+	}
+
+
+	/**
+	 * Called by a page after it has been serialized into the transaction log.
+	 * The decoded page replaces any cached instance so that following loads
+	 * see the written state without parsing the page again.
+	 */
+	void pageWritten(Page aPage)
+	{
+		if (aPage.mTerminated)
+		{
+			mPageCache.remove(aPage.mPageIndex);
+		}
+		else
+		{
+			mPageCache.put(aPage.mPageIndex, aPage, mPageSize);
+		}
+	}
+
+
+	/**
+	 * Called by a page when its content has changed. The page is kept until
+	 * commit and will be serialized only once regardless of how many times it
+	 * was modified.
+	 */
+	void pageModified(Page aPage)
+	{
+		if (mDirtyPages.put(aPage.mPageIndex, aPage) == null)
+		{
+			mStatistics.inserted(CacheStatistics.PageType.DIRTY);
+		}
+
+		if (aPage.mTerminated)
+		{
+			mPageCache.remove(aPage.mPageIndex);
+		}
+	}
+
+
+	/**
+	 * Serializes all modified pages into the transaction log and commits it.
+	 */
+	private void commitImpl() throws IOException
+	{
+		if (mRootPageIndex == 0 && !mDirtyPages.isEmpty())
+		{
+			convertLegacyLayout();
+		}
+
+		for (Page page : mDirtyPages.values())
+		{
+			page.write();
+			page.mDirty = false;
+		}
+
+		mDirtyPages.clear();
+		mStatistics.dirtyCleared();
+
+		for (long pageIndex : mReleasedOverflowPages)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(mPageSize);
+			buffer.put('X');
+			buffer.putNumber(freePage(pageIndex), 5);
+			mTransactionLog.write(pageIndex, buffer.array());
+		}
+
+		mReleasedOverflowPages.clear();
+
+		if (mMetaDirty)
+		{
+			writeMetaPage();
+		}
+
+		mTransactionLog.commit();
+	}
+
+
+	/**
+	 * Aborts the transaction log and drops all decoded pages since they may
+	 * have been modified by the aborted operation. Pages allocated by the
+	 * aborted operation are released.
+	 */
+	private void abortImpl() throws IOException
+	{
+		mTransactionLog.abort();
+		mPageCache.clearQuiet();
+		mDirtyPages.clear();
+		mReleasedOverflowPages.clear();
+		mStatistics.pagesCleared();
+		mStatistics.dirtyCleared();
+		mNextFreePageIndex = (int)((mTransactionLog.length()-mHeaderSize) / mStorePageSize);
+		mMetaDirty = false;
+		readMetaPage();
+	}
+
+
+	private void populateJTreeImpl(IndexPage aParent, long aIndex, DefaultMutableTreeNode aJTreeNode) throws IOException, TreeIntegrityException
+	{
+		Page page = loadPage(aParent, aIndex);
+
+		if (page instanceof IndexPage)
+		{
+			DefaultMutableTreeNode newJTreePage = new DefaultMutableTreeNode("["+((IndexPage)page).getFirstPageIndex()+"]");
+			aJTreeNode.add(newJTreePage);
+
 			populateJTreeImpl((IndexPage)page, ((IndexPage)page).getFirstPageIndex(), newJTreePage);
 
 			for (IndexElement element : ((IndexPage)page).getElements())
@@ -499,9 +1424,170 @@ public class BTree implements Iterable<DataElement>
 	}
 
 
-	int getNextFreePageIndex()
+	/**
+	 * Allocates a page, the first page of the free list is reused before the
+	 * file is extended.
+	 */
+	long getNextFreePageIndex() throws IOException
+	{
+		if (mFreePageHead == 0)
+		{
+			mMetaDirty = true;
+			return mNextFreePageIndex++;
+		}
+
+		long pageIndex = mFreePageHead;
+
+		ByteBuffer buffer = ByteBuffer.wrap(mTransactionLog.read(pageIndex));
+
+		if (buffer.getUnsignedByte() != 'X')
+		{
+			throw new IOException("Free list refers to a page in use: page index: " + pageIndex);
+		}
+
+		mFreePageHead = buffer.getNumber(5);
+		mFreePageCount--;
+		mMetaDirty = true;
+
+		return pageIndex;
+	}
+
+
+	/**
+	 * Adds a terminated page to the free list. Called when the page is
+	 * serialized at commit so pages released by a transaction are reused by
+	 * following transactions only.
+	 *
+	 * @return
+	 *   the index of the next free page to be stored in the released page
+	 */
+	long freePage(long aPageIndex)
+	{
+		long next = mFreePageHead;
+
+		mFreePageHead = aPageIndex;
+		mFreePageCount++;
+		mMetaDirty = true;
+
+		return next;
+	}
+
+
+	long getRootPageIndex()
+	{
+		return mRootPageIndex;
+	}
+
+
+	/**
+	 * Returns the number of released pages waiting to be reused.
+	 */
+	public long getFreePageCount()
+	{
+		return mFreePageCount;
+	}
+
+
+	/**
+	 * Reads the meta page. Files created before the meta page existed have
+	 * the root at page zero and no free list until they are modified. Pages
+	 * after the committed page count were written by an interrupted commit
+	 * and are ignored.
+	 */
+	private void readMetaPage() throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(mTransactionLog.read(0));
+
+		if (buffer.getUnsignedByte() != 'M')
+		{
+			setChecksums(false);
+			mRootPageIndex = 0;
+			mFreePageHead = 0;
+			mFreePageCount = 0;
+			mBlobEnd = mNextFreePageIndex;
+			return;
+		}
+
+		int version = buffer.getUnsignedByte();
+
+		if (version != META_VERSION && version != META_VERSION_CHECKSUMS)
+		{
+			throw new IOException("Unsupported file version: " + version);
+		}
+
+		// the meta page is read before the version is known
+		setChecksums(version == META_VERSION_CHECKSUMS);
+		mTransactionLog.verify(0, buffer.array());
+
+		mRootPageIndex = buffer.getNumber(5);
+		mFreePageHead = buffer.getNumber(5);
+		mFreePageCount = buffer.getNumber(5);
+		mBlobEnd = buffer.getNumber(5);
+
+		long pageCount = buffer.getNumber(5);
+		if (pageCount != 0)
+		{
+			mNextFreePageIndex = (int)pageCount;
+		}
+
+		// files written before the end of the blobs was recorded may have blobs anywhere
+		if (mBlobEnd == 0)
+		{
+			mBlobEnd = mNextFreePageIndex;
+			mMetaDirty = true;
+		}
+	}
+
+
+	private void writeMetaPage() throws IOException
 	{
-		return mNextFreePageIndex++;
+		ByteBuffer buffer = ByteBuffer.allocate(mPageSize);
+		buffer.put('M');
+		buffer.put(mTransactionLog.isChecksums() ? META_VERSION_CHECKSUMS : META_VERSION);
+		buffer.putNumber(mRootPageIndex, 5);
+		buffer.putNumber(mFreePageHead, 5);
+		buffer.putNumber(mFreePageCount, 5);
+		buffer.putNumber(mBlobEnd, 5);
+		buffer.putNumber(Math.max(mNextFreePageIndex, mBlobEnd), 5);
+
+		mTransactionLog.write(0, buffer.array());
+
+		mMetaDirty = false;
+	}
+
+
+	/**
+	 * Sets whether pages have checksums, the page size used by the tree
+	 * excludes the checksum.
+	 */
+	private void setChecksums(boolean aChecksums)
+	{
+		mTransactionLog.setChecksums(aChecksums);
+		mPageSize = mStorePageSize - (aChecksums ? TransactionLog.CHECKSUM_SIZE : 0);
+		mMaxKeyLength = Math.min((mPageSize - IndexPage.HEADER_SIZE) / 2 - IndexElement.HEADER_SIZE, 256);
+
+		// larger content is stored in overflow pages keeping the data pages dense
+		mMaxInlineContentLength = (mPageSize - DataPage.HEADER_SIZE) / 4;
+	}
+
+
+	/**
+	 * Moves the root of a file without a meta page away from page zero.
+	 */
+	private void convertLegacyLayout() throws IOException, TreeIntegrityException
+	{
+		Page root = loadPage(null, 0);
+
+		mDirtyPages.remove(0L);
+		mPageCache.remove(0L);
+
+		mBlobEnd = mNextFreePageIndex;
+
+		root.mPageIndex = mNextFreePageIndex++;
+		root.markDirty();
+
+		mRootPageIndex = root.mPageIndex;
+		mMetaDirty = true;
 	}
 
 
@@ -580,7 +1666,7 @@ public class BTree implements Iterable<DataElement>
 
 	IndexPage findNearestParent(byte [] aKey) throws IOException
 	{
-		Page page = loadPage(null, 0);
+		Page page = loadPage(null, mRootPageIndex);
 		for (;;)
 		{
 			Page tmp = page;
@@ -0,0 +1,157 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * Options used when opening a BTree. The setters return the instance so that
+ * options can be chained:
+ *
+ * <pre>
+ * new BTree(store, new BTreeOptions().setBlockCacheSize(4L &lt;&lt; 30));
+ * </pre>
+ *
+ * Cache sizes are expressed in bytes. The decoded page cache is sized by
+ * estimating every decoded page to the page size of the PageStore.<p>
+ *
+ * Large block caches should be kept off heap to avoid increasing the work of
+ * the garbage collector.
+ */
+public class BTreeOptions
+{
+	public final static long DEFAULT_BLOCK_CACHE_SIZE = 4 << 20;
+	public final static long DEFAULT_PAGE_CACHE_SIZE = 4 << 20;
+
+	private long mBlockCacheSize;
+	private long mPageCacheSize;
+	private boolean mOffHeapBlockCache;
+	private int mBlockCacheConcurrency;
+	private String mStatisticsName;
+	private boolean mPageChecksums;
+
+
+	public BTreeOptions()
+	{
+		mBlockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+		mPageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+		mPageChecksums = true;
+	}
+
+
+	public long getBlockCacheSize()
+	{
+		return mBlockCacheSize;
+	}
+
+
+	/**
+	 * Sets the capacity in bytes of the cache holding raw pages read from the
+	 * PageStore.
+	 */
+	public BTreeOptions setBlockCacheSize(long aBlockCacheSize)
+	{
+		if (aBlockCacheSize < 0)
+		{
+			throw new IllegalArgumentException("Negative cache size: " + aBlockCacheSize);
+		}
+
+		mBlockCacheSize = aBlockCacheSize;
+		return this;
+	}
+
+
+	public long getPageCacheSize()
+	{
+		return mPageCacheSize;
+	}
+
+
+	/**
+	 * Sets the capacity in bytes of the cache holding decoded pages.
+	 */
+	public BTreeOptions setPageCacheSize(long aPageCacheSize)
+	{
+		if (aPageCacheSize < 0)
+		{
+			throw new IllegalArgumentException("Negative cache size: " + aPageCacheSize);
+		}
+
+		mPageCacheSize = aPageCacheSize;
+		return this;
+	}
+
+
+	public boolean isOffHeapBlockCache()
+	{
+		return mOffHeapBlockCache;
+	}
+
+
+	/**
+	 * Keeps the block cache in direct memory outside of the heap. The
+	 * maximum direct memory of the JVM (-XX:MaxDirectMemorySize) must be at
+	 * least the block cache size.
+	 */
+	public BTreeOptions setOffHeapBlockCache(boolean aOffHeapBlockCache)
+	{
+		mOffHeapBlockCache = aOffHeapBlockCache;
+		return this;
+	}
+
+
+	public int getBlockCacheConcurrency()
+	{
+		return mBlockCacheConcurrency;
+	}
+
+
+	/**
+	 * Sets the number of lock stripes of the block cache. Zero, the default,
+	 * uses a single lock. Ignored when the block cache is kept off heap.
+	 */
+	public BTreeOptions setBlockCacheConcurrency(int aBlockCacheConcurrency)
+	{
+		if (aBlockCacheConcurrency < 0)
+		{
+			throw new IllegalArgumentException("Negative concurrency: " + aBlockCacheConcurrency);
+		}
+
+		mBlockCacheConcurrency = aBlockCacheConcurrency;
+		return this;
+	}
+
+
+	public String getStatisticsName()
+	{
+		return mStatisticsName;
+	}
+
+
+	/**
+	 * Publishes the cache statistics of the tree as an MBean named
+	 * "org.terifan.btree:type=CacheStatistics,name=&lt;aName&gt;" until the
+	 * tree is closed. Null, the default, doesn't register any MBean.
+	 */
+	public BTreeOptions setStatisticsName(String aName)
+	{
+		mStatisticsName = aName;
+		return this;
+	}
+
+
+	public boolean isPageChecksums()
+	{
+		return mPageChecksums;
+	}
+
+
+	/**
+	 * Stores a CRC32C checksum in the last four bytes of every page of a tree
+	 * being created, verified when the page is read from the PageStore. Trees
+	 * store whether checksums are used and this option is ignored when an
+	 * existing tree is opened. Enabled by default.
+	 */
+	public BTreeOptions setPageChecksums(boolean aPageChecksums)
+	{
+		mPageChecksums = aPageChecksums;
+		return this;
+	}
+}
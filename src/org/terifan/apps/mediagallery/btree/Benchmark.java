@@ -0,0 +1,106 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.File;
+import java.util.Random;
+
+
+/**
+ * Measures put, get and prefix iteration times for a range of page sizes.
+ * Keys are short random strings similar to the keys used by the media
+ * gallery.<p>
+ *
+ * Arguments: [count] [file|mapped|memory], the second selecting the
+ * PageStore.
+ */
+public class Benchmark
+{
+	public static void main(String... args)
+	{
+		try
+		{
+			int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+			String store = args.length > 1 ? args[1] : "file";
+
+			System.out.printf("%-10s %12s %12s %12s%n", "page-size", "put ns/op", "get ns/op", "seek ns/op");
+
+			for (int pageSize : new int[]{1024, 4096, 16384, 65536})
+			{
+				run(pageSize, count, store);
+			}
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace(System.out);
+		}
+	}
+
+
+	private static void run(int aPageSize, int aCount, String aStore) throws Exception
+	{
+		File file = File.createTempFile("btree-benchmark", ".db");
+		file.delete();
+
+		byte [][] keys = new byte[aCount][];
+		Random rnd = new Random(1);
+		for (int i = 0; i < aCount; i++)
+		{
+			keys[i] = ("key" + Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36)).getBytes();
+		}
+
+		byte [] value = new byte[16];
+		byte [] buffer = new byte[16];
+
+		PageStore store;
+		switch (aStore)
+		{
+			case "mapped":
+				store = new MappedPageStore(file, false, aPageSize);
+				break;
+			case "memory":
+				store = new MemoryPageStore(aPageSize);
+				break;
+			default:
+				store = new FilePageStore(file, false, aPageSize);
+				break;
+		}
+
+		BTree tree = new BTree(store);
+
+		try
+		{
+			long putTime = System.nanoTime();
+			tree.startTransaction();
+			for (int i = 0; i < aCount; i++)
+			{
+				tree.put(keys[i], value);
+			}
+			tree.commitTransaction();
+			putTime = System.nanoTime() - putTime;
+
+			long getTime = 0;
+			for (int pass = 0; pass < 5; pass++)
+			{
+				getTime = System.nanoTime();
+				for (int i = 0; i < aCount; i++)
+				{
+					tree.get(keys[i], buffer);
+				}
+				getTime = System.nanoTime() - getTime;
+			}
+
+			long seekTime = System.nanoTime();
+			for (int i = 0; i < aCount; i += 10)
+			{
+				tree.iterator(keys[i]).next();
+			}
+			seekTime = System.nanoTime() - seekTime;
+
+			System.out.printf("%-10d %12d %12d %12d%n", aPageSize, putTime / aCount, getTime / aCount, seekTime / (aCount / 10));
+		}
+		finally
+		{
+			tree.close();
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * A BlockCache holds the raw content of pages read from or written to a
+ * PageStore. Capacities are expressed in bytes.
+ */
+interface BlockCache
+{
+	/**
+	 * Returns the content of a page or null if the page isn't cached. The
+	 * array returned must not be modified.
+	 *
+	 * @param aLowPriority
+	 *   true if the page is read by a scan and shouldn't be promoted
+	 */
+	byte [] get(long aPageIndex, boolean aLowPriority);
+
+
+	/**
+	 * Caches the content of a page. The cache may keep a reference to the
+	 * array provided which must not be modified afterwards.
+	 */
+	void put(long aPageIndex, byte [] aBuffer, boolean aLowPriority);
+
+
+	void remove(long aPageIndex);
+
+
+	void clear();
+
+
+	void setCapacity(long aCapacity);
+
+
+	long getCapacity();
+
+
+	/**
+	 * Returns the number of pages in the cache.
+	 */
+	int size();
+}
@@ -1,9 +1,9 @@
 package org.terifan.apps.mediagallery.btree;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 
 
@@ -20,6 +20,13 @@ import java.util.Set;
  * CacheStateListeners can be used to monitor how the cache receives removes
  * items.<p>
  *
+ * Entries are kept in a hash map and linked together in doubly linked lists
+ * maintained by an EvictionPolicy, making lookup, reordering, insertion and
+ * eviction constant time operations. The default policy is LRU.<p>
+ *
+ * Reads and inserts can be flagged as low priority, as done by scans, in
+ * which case the policy won't promote the items involved.<p>
+ *
  * @param <K>
  *   the key type used by this cache
  * @param <V>
@@ -29,19 +36,110 @@ class Cache<K,V> implements Iterable<K>
 {
 	private long mCapacity;
 	private long mUsedSize;
-//	private ArrayList<CacheStateListener<K,V>> mListeners;
-	private LinkedList<K> mCacheOrder;
+	private ArrayList<CacheStateListener<K,V>> mListeners;
 	private HashMap<K,Entry<K,V>> mKeyValueMap;
+	private EvictionPolicy<K,V> mPolicy;
 //	private CacheBackend<K,V> mCacheBackend;
 	private int mExpireTime;
 
 
-	public class Entry<K,V>
+	static class Entry<K,V>
 	{
-		private K key;
-		private V value;
-		private long time;
-		private long size;
+		K key;
+		volatile V value; // read without locking by ConcurrentCache
+		long time;
+		long size;
+		Entry<K,V> prev;
+		Entry<K,V> next;
+		int queue; // list of the EvictionPolicy holding this entry
+	}
+
+
+	/**
+	 * An intrusive doubly linked list of entries used by eviction policies.
+	 */
+	static class EntryList<K,V>
+	{
+		Entry<K,V> head;
+		Entry<K,V> tail;
+
+
+		void linkFirst(Entry<K,V> aEntry)
+		{
+			aEntry.prev = null;
+			aEntry.next = head;
+
+			if (head != null)
+			{
+				head.prev = aEntry;
+			}
+			else
+			{
+				tail = aEntry;
+			}
+
+			head = aEntry;
+		}
+
+
+		void linkLast(Entry<K,V> aEntry)
+		{
+			aEntry.next = null;
+			aEntry.prev = tail;
+
+			if (tail != null)
+			{
+				tail.next = aEntry;
+			}
+			else
+			{
+				head = aEntry;
+			}
+
+			tail = aEntry;
+		}
+
+
+		void unlink(Entry<K,V> aEntry)
+		{
+			if (aEntry.prev != null)
+			{
+				aEntry.prev.next = aEntry.next;
+			}
+			else
+			{
+				head = aEntry.next;
+			}
+
+			if (aEntry.next != null)
+			{
+				aEntry.next.prev = aEntry.prev;
+			}
+			else
+			{
+				tail = aEntry.prev;
+			}
+
+			aEntry.prev = null;
+			aEntry.next = null;
+		}
+
+
+		void moveFirst(Entry<K,V> aEntry)
+		{
+			if (head != aEntry)
+			{
+				unlink(aEntry);
+				linkFirst(aEntry);
+			}
+		}
+
+
+		void clear()
+		{
+			head = null;
+			tail = null;
+		}
 	}
 
 
@@ -53,11 +151,27 @@ class Cache<K,V> implements Iterable<K>
 	 *   exceeds this value.
 	 */
 	public Cache(long aCapacity)
+	{
+		this(aCapacity, new LRUEvictionPolicy<>());
+	}
+
+
+	/**
+	 * Constructs a new standalone Cache object with a certain capacity and
+	 * eviction policy.
+	 *
+	 * @param aCapacity
+	 *   capacity of this Cache. Items will be removed when the total size
+	 *   exceeds this value.
+	 * @param aPolicy
+	 *   decides the order in which items are removed.
+	 */
+	public Cache(long aCapacity, EvictionPolicy<K,V> aPolicy)
 	{
 		mCapacity = aCapacity;
+		mPolicy = aPolicy;
 		mKeyValueMap = new HashMap<>();
-		mCacheOrder = new LinkedList<>();
-//		mListeners = new ArrayList<>();
+		mListeners = new ArrayList<>();
 		mExpireTime = Integer.MAX_VALUE;
 	}
 
@@ -74,6 +188,52 @@ class Cache<K,V> implements Iterable<K>
 	}
 
 
+	public synchronized void addCacheStateListener(CacheStateListener<K,V> aListener)
+	{
+		mListeners.add(aListener);
+	}
+
+
+	public synchronized void removeCacheStateListener(CacheStateListener<K,V> aListener)
+	{
+		mListeners.remove(aListener);
+	}
+
+
+	/**
+	 * Replaces the eviction policy of this Cache. Items in the Cache are
+	 * handed over to the new policy, least valuable item first.
+	 *
+	 * @param aPolicy
+	 *   decides the order in which items are removed.
+	 */
+	public synchronized void setEvictionPolicy(EvictionPolicy<K,V> aPolicy)
+	{
+		ArrayList<Entry<K,V>> entries = new ArrayList<>(mKeyValueMap.size());
+
+		for (Iterator<Entry<K,V>> it = mPolicy.iterator(); it.hasNext();)
+		{
+			entries.add(it.next());
+		}
+
+		mPolicy.clear();
+		mPolicy = aPolicy;
+
+		for (int i = entries.size(); --i >= 0;)
+		{
+			mPolicy.inserted(entries.get(i), false);
+		}
+
+		shrink();
+	}
+
+
+	public synchronized EvictionPolicy<K,V> getEvictionPolicy()
+	{
+		return mPolicy;
+	}
+
+
 	/**
 	 * Sets the capacity of this Cache.<p>
 	 *
@@ -110,7 +270,8 @@ class Cache<K,V> implements Iterable<K>
 	 * This method calls all CacheStateListeners of this Cache if the Cache is
 	 * full and aKey is not already in the Cache.<p>
 	 *
-	 * This method will always reject all items that exceed the capacity.
+	 * This method will always reject all items that exceed the capacity, any
+	 * previous value of the key is removed.
 	 *
 	 * @param aKey
 	 *   Key with which the specified value is to be associated. Must not be
@@ -124,57 +285,73 @@ class Cache<K,V> implements Iterable<K>
 	 *   mapping for key. A null return can also indicate that the map
 	 *   previously associated null with the specified key.
 	 */
-	public synchronized V put(K aKey, V aValue, long aItemSize)
+	public V put(K aKey, V aValue, long aItemSize)
+	{
+		return put(aKey, aValue, aItemSize, false);
+	}
+
+
+	/**
+	 * Associates the specified value with the specified key in this map.
+	 *
+	 * @param aLowPriority
+	 *   true if the item is inserted by a scan and shouldn't displace items
+	 *   that are used repeatedly.
+	 * @see #put(java.lang.Object, java.lang.Object, long)
+	 */
+	public synchronized V put(K aKey, V aValue, long aItemSize, boolean aLowPriority)
 	{
 		if (aItemSize > mCapacity)
 		{
-			return null;
+			// a previous value must not remain visible after being replaced
+			return removeImpl(aKey, false);
 		}
 
 		V prevValue;
 
-		if (mKeyValueMap.containsKey(aKey))
-		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
-
-			Entry<K,V> entry = mKeyValueMap.get(aKey);
+		Entry<K,V> entry = mKeyValueMap.get(aKey);
 
+		if (entry != null)
+		{
 			prevValue = entry.value;
 
+			long prevSize = entry.size;
+
 			mUsedSize += aItemSize - entry.size;
 
 			entry.value = aValue;
 			entry.size = aItemSize;
 			entry.time = System.currentTimeMillis();
 
-			shrink();
+			mPolicy.updated(entry, prevSize, aLowPriority);
+
+			for (CacheStateListener<K,V> listener : mListeners)
+			{
+				listener.entryUpdated(this, aKey, prevValue, aValue);
+			}
 
-//			for (CacheStateListener listener : mListeners)
-//			{
-//				listener.entryUpdated(this, aKey, aValue);
-//			}
+			shrink();
 		}
 		else
 		{
 			prevValue = null;
 
-			Entry entry = new Entry();
+			entry = new Entry<>();
 			entry.key = aKey;
 			entry.value = aValue;
 			entry.size = aItemSize;
 			entry.time = System.currentTimeMillis();
 
 			mUsedSize += aItemSize;
-			mCacheOrder.addFirst(aKey);
 			mKeyValueMap.put(aKey, entry);
+			mPolicy.inserted(entry, aLowPriority);
 
-			shrink();
+			for (CacheStateListener<K,V> listener : mListeners)
+			{
+				listener.entryAdded(this, aKey, aValue);
+			}
 
-//			for (CacheStateListener listener : mListeners)
-//			{
-//				listener.entryAdded(this, aKey, aValue);
-//			}
+			shrink();
 		}
 
 		return prevValue;
@@ -183,24 +360,23 @@ class Cache<K,V> implements Iterable<K>
 
 	private void shrink()
 	{
-		while (mUsedSize > mCapacity && mKeyValueMap.size() > 0)
+		while (mUsedSize > mCapacity && !mKeyValueMap.isEmpty())
 		{
-			removeImpl(mCacheOrder.getLast(), true);
+			removeImpl(mPolicy.victim(mCapacity).key, true);
 		}
 
 		if (mExpireTime < Integer.MAX_VALUE)
 		{
 			long threshold = System.currentTimeMillis() - mExpireTime;
 
-			while (mKeyValueMap.size() > 0)
+			while (!mKeyValueMap.isEmpty())
 			{
-				K last = mCacheOrder.getLast();
-				Entry entry = mKeyValueMap.get(last);
-				if (entry == null || entry.time > threshold)
+				Entry<K,V> entry = mPolicy.victim(mCapacity);
+				if (entry.time > threshold)
 				{
 					break;
 				}
-				removeImpl(last, true);
+				removeImpl(entry.key, true);
 			}
 		}
 	}
@@ -224,14 +400,27 @@ class Cache<K,V> implements Iterable<K>
 	 *   The value to which this map maps the specified key, or null if the
 	 *   map contains no mapping for this key.
 	 */
-	public synchronized V get(K aKey)
+	public V get(K aKey)
+	{
+		return get(aKey, false);
+	}
+
+
+	/**
+	 * Returns the value to which the specified key is mapped.
+	 *
+	 * @param aLowPriority
+	 *   true if the read is made by a scan, in which case the item isn't
+	 *   promoted.
+	 * @see #get(java.lang.Object)
+	 */
+	public synchronized V get(K aKey, boolean aLowPriority)
 	{
-		Entry<K, V> entry = mKeyValueMap.get(aKey);
+		Entry<K,V> entry = mKeyValueMap.get(aKey);
 
 		if (entry != null)
 		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
+			mPolicy.accessed(entry, aLowPriority);
 
 			return entry.value;
 		}
@@ -282,12 +471,13 @@ class Cache<K,V> implements Iterable<K>
 	 */
 	public synchronized boolean containsKey(K aKey)
 	{
-		boolean b = mKeyValueMap.containsKey(aKey);
+		Entry<K,V> entry = mKeyValueMap.get(aKey);
+
+		boolean b = entry != null;
 
 		if (b)
 		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
+			mPolicy.accessed(entry, false);
 		}
 //		else if (mCacheBackend != null)
 //		{
@@ -312,9 +502,11 @@ class Cache<K,V> implements Iterable<K>
 	 */
 	public synchronized boolean bump(K aKey)
 	{
-		if (mCacheOrder.remove(aKey))
+		Entry<K,V> entry = mKeyValueMap.get(aKey);
+
+		if (entry != null)
 		{
-			mCacheOrder.addFirst(aKey);
+			mPolicy.accessed(entry, false);
 			return true;
 		}
 		return false;
@@ -354,9 +546,21 @@ class Cache<K,V> implements Iterable<K>
 			return null;
 		}
 
-		mCacheOrder.remove(aKey);
+		mPolicy.removed(entry, aDropped);
 		mUsedSize -= entry.size;
 
+		for (CacheStateListener<K,V> listener : mListeners)
+		{
+			if (aDropped)
+			{
+				listener.entryDropped(this, aKey, entry.value);
+			}
+			else
+			{
+				listener.entryRemoved(this, aKey, entry.value);
+			}
+		}
+
 		return entry.value;
 	}
 
@@ -392,14 +596,14 @@ class Cache<K,V> implements Iterable<K>
 	 */
 	public synchronized void clear()
 	{
-		while (mCacheOrder.size() > 0)
+		while (!mKeyValueMap.isEmpty())
 		{
-			remove(mCacheOrder.getLast());
+			remove(mPolicy.victim(mCapacity).key);
 		}
 
 		mUsedSize = 0;
 		mKeyValueMap.clear();
-		mCacheOrder.clear();
+		mPolicy.clear();
 	}
 
 
@@ -411,7 +615,7 @@ class Cache<K,V> implements Iterable<K>
 	{
 		mUsedSize = 0;
 		mKeyValueMap.clear();
-		mCacheOrder.clear();
+		mPolicy.clear();
 	}
 
 
@@ -479,14 +683,30 @@ class Cache<K,V> implements Iterable<K>
 
 	/**
 	 * Returns an iterator for the keys in this Cache. The iterator is sorted
-	 * with the most recently used item first and the least recently used item
-	 * last.<p>
+	 * in the order of the EvictionPolicy, for an LRU policy with the most
+	 * recently used item first and the least recently used item last.<p>
 	 *
 	 * Note: the Iterator must not be used to remove items.
 	 */
 	@Override
 	public synchronized Iterator<K> iterator()
 	{
-		return mCacheOrder.iterator();
+		Iterator<Entry<K,V>> it = mPolicy.iterator();
+
+		return new Iterator<K>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return it.hasNext();
+			}
+
+
+			@Override
+			public K next()
+			{
+				return it.next().key;
+			}
+		};
 	}
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Measures the hit throughput of the synchronized Cache and the striped
+ * ConcurrentCache with 1 to 32 reading threads. All keys read are cached and
+ * 90% of the reads go to 10% of the keys.
+ */
+public class CacheBenchmark
+{
+	private final static int KEYS = 100000;
+
+
+	public static void main(String... args)
+	{
+		try
+		{
+			long duration = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+			Cache<Long,byte[]> cache = new Cache<>(KEYS, new TwoQueueEvictionPolicy<>());
+			ConcurrentCache<Long,byte[]> concurrentCache = new ConcurrentCache<>(KEYS * 2, 64, TwoQueueEvictionPolicy::new);
+
+			for (long i = 0; i < KEYS; i++)
+			{
+				cache.put(i, new byte[16], 1);
+				concurrentCache.put(i, new byte[16], 1);
+			}
+
+			System.out.printf("%-8s %16s %16s%n", "threads", "Cache ops/ms", "Concurrent ops/ms");
+
+			for (int threads = 1; threads <= 32; threads *= 2)
+			{
+				long a = run(threads, duration, key -> cache.get(key));
+				long b = run(threads, duration, key -> concurrentCache.get(key));
+
+				System.out.printf("%-8d %16d %16d%n", threads, a / duration, b / duration);
+			}
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace(System.out);
+		}
+	}
+
+
+	private interface Reader
+	{
+		byte [] read(long aKey);
+	}
+
+
+	private static long run(int aThreads, long aDuration, Reader aReader) throws InterruptedException
+	{
+		LongAdder operations = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread [] threads = new Thread[aThreads];
+		long [] end = new long[1];
+
+		for (int i = 0; i < aThreads; i++)
+		{
+			threads[i] = new Thread(() ->
+			{
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				long ops = 0;
+				int misses = 0;
+
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+
+				while (System.currentTimeMillis() < end[0])
+				{
+					for (int j = 0; j < 1000; j++)
+					{
+						long key = rnd.nextInt(10) == 0 ? rnd.nextInt(KEYS) : rnd.nextInt(KEYS / 10);
+
+						if (aReader.read(key) == null)
+						{
+							misses++;
+						}
+					}
+					ops += 1000;
+				}
+
+				if (misses > 0)
+				{
+					throw new IllegalStateException("Unexpected misses: " + misses);
+				}
+
+				operations.add(ops);
+			});
+			threads[i].start();
+		}
+
+		end[0] = System.currentTimeMillis() + aDuration;
+		start.countDown();
+
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		return operations.sum();
+	}
+}
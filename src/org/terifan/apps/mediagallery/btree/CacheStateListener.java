@@ -0,0 +1,27 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * A CacheStateListener is notified when items are added to or removed from a
+ * Cache. Listeners are called while the Cache is locked and must not access
+ * the Cache.
+ */
+interface CacheStateListener<K,V>
+{
+	void entryAdded(Cache<K,V> aCache, K aKey, V aValue);
+
+
+	void entryUpdated(Cache<K,V> aCache, K aKey, V aPreviousValue, V aValue);
+
+
+	/**
+	 * Called when an item has been removed on request.
+	 */
+	void entryRemoved(Cache<K,V> aCache, K aKey, V aValue);
+
+
+	/**
+	 * Called when an item has been evicted to accommodate other items.
+	 */
+	void entryDropped(Cache<K,V> aCache, K aKey, V aValue);
+}
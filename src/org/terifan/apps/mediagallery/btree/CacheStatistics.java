@@ -0,0 +1,356 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters of the page caches of a BTree.<p>
+ *
+ * Decoded pages are counted by type: index and data pages in the page cache
+ * and modified pages in the dirty overlay, which are found before the page
+ * cache is searched. A miss is a page decoded or searched in its raw form.
+ * Block counters cover the cache of raw pages where a miss is a read from the
+ * PageStore.<p>
+ *
+ * Byte usage is estimated to one page size per page. Counters are updated
+ * without locking and are cheap enough to be left on.
+ */
+public class CacheStatistics implements CacheStatisticsMBean
+{
+	public enum PageType
+	{
+		INDEX,
+		DATA,
+		DIRTY
+	}
+
+	private final int mPageSize;
+	private final LongAdder [] mHits;
+	private final LongAdder [] mMisses;
+	private final LongAdder [] mEvictions;
+	private final LongAdder [] mInserts;
+	private final LongAdder [] mPages;
+	private final LongAdder mBlockHits;
+	private final LongAdder mBlockMisses;
+	private BlockCache mBlockCache;
+
+
+	CacheStatistics(int aPageSize)
+	{
+		mPageSize = aPageSize;
+		mHits = create(PageType.values().length);
+		mMisses = create(PageType.values().length);
+		mEvictions = create(PageType.values().length);
+		mInserts = create(PageType.values().length);
+		mPages = create(PageType.values().length);
+		mBlockHits = new LongAdder();
+		mBlockMisses = new LongAdder();
+	}
+
+
+	private static LongAdder [] create(int aLength)
+	{
+		LongAdder [] counters = new LongAdder[aLength];
+		for (int i = 0; i < aLength; i++)
+		{
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+
+
+	static PageType typeOf(Page aPage)
+	{
+		return aPage instanceof IndexPage ? PageType.INDEX : PageType.DATA;
+	}
+
+
+	static PageType typeOf(byte [] aBuffer)
+	{
+		return aBuffer[0] == 'i' || aBuffer[0] == 'I' ? PageType.INDEX : PageType.DATA;
+	}
+
+
+	void hit(PageType aType)
+	{
+		mHits[aType.ordinal()].increment();
+	}
+
+
+	void miss(PageType aType)
+	{
+		mMisses[aType.ordinal()].increment();
+	}
+
+
+	void inserted(PageType aType)
+	{
+		mInserts[aType.ordinal()].increment();
+		mPages[aType.ordinal()].increment();
+	}
+
+
+	void removed(PageType aType, boolean aEvicted)
+	{
+		if (aEvicted)
+		{
+			mEvictions[aType.ordinal()].increment();
+		}
+		mPages[aType.ordinal()].decrement();
+	}
+
+
+	/**
+	 * Called when the dirty overlay is emptied by a commit or abort.
+	 */
+	void dirtyCleared()
+	{
+		mPages[PageType.DIRTY.ordinal()].reset();
+	}
+
+
+	/**
+	 * Called when the decoded page cache is emptied.
+	 */
+	void pagesCleared()
+	{
+		mPages[PageType.INDEX.ordinal()].reset();
+		mPages[PageType.DATA.ordinal()].reset();
+	}
+
+
+	void blockHit()
+	{
+		mBlockHits.increment();
+	}
+
+
+	void blockMiss()
+	{
+		mBlockMisses.increment();
+	}
+
+
+	void setBlockCache(BlockCache aBlockCache)
+	{
+		mBlockCache = aBlockCache;
+	}
+
+
+	/**
+	 * Returns a listener maintaining the insert, eviction and byte counters of
+	 * a decoded page cache.
+	 */
+	CacheStateListener<Long,Page> createListener()
+	{
+		return new CacheStateListener<Long,Page>()
+		{
+			@Override
+			public void entryAdded(Cache<Long,Page> aCache, Long aKey, Page aValue)
+			{
+				inserted(typeOf(aValue));
+			}
+
+
+			@Override
+			public void entryUpdated(Cache<Long,Page> aCache, Long aKey, Page aPreviousValue, Page aValue)
+			{
+				PageType prev = typeOf(aPreviousValue);
+				PageType next = typeOf(aValue);
+				if (prev != next)
+				{
+					mPages[prev.ordinal()].decrement();
+					mPages[next.ordinal()].increment();
+				}
+			}
+
+
+			@Override
+			public void entryRemoved(Cache<Long,Page> aCache, Long aKey, Page aValue)
+			{
+				removed(typeOf(aValue), false);
+			}
+
+
+			@Override
+			public void entryDropped(Cache<Long,Page> aCache, Long aKey, Page aValue)
+			{
+				removed(typeOf(aValue), true);
+			}
+		};
+	}
+
+
+	public long getHits(PageType aType)
+	{
+		return mHits[aType.ordinal()].sum();
+	}
+
+
+	public long getMisses(PageType aType)
+	{
+		return mMisses[aType.ordinal()].sum();
+	}
+
+
+	public long getEvictions(PageType aType)
+	{
+		return mEvictions[aType.ordinal()].sum();
+	}
+
+
+	public long getInserts(PageType aType)
+	{
+		return mInserts[aType.ordinal()].sum();
+	}
+
+
+	public long getBytes(PageType aType)
+	{
+		return mPages[aType.ordinal()].sum() * mPageSize;
+	}
+
+
+	@Override
+	public long getIndexHits()
+	{
+		return getHits(PageType.INDEX);
+	}
+
+
+	@Override
+	public long getIndexMisses()
+	{
+		return getMisses(PageType.INDEX);
+	}
+
+
+	@Override
+	public long getIndexEvictions()
+	{
+		return getEvictions(PageType.INDEX);
+	}
+
+
+	@Override
+	public long getIndexInserts()
+	{
+		return getInserts(PageType.INDEX);
+	}
+
+
+	@Override
+	public long getIndexBytes()
+	{
+		return getBytes(PageType.INDEX);
+	}
+
+
+	@Override
+	public long getDataHits()
+	{
+		return getHits(PageType.DATA);
+	}
+
+
+	@Override
+	public long getDataMisses()
+	{
+		return getMisses(PageType.DATA);
+	}
+
+
+	@Override
+	public long getDataEvictions()
+	{
+		return getEvictions(PageType.DATA);
+	}
+
+
+	@Override
+	public long getDataInserts()
+	{
+		return getInserts(PageType.DATA);
+	}
+
+
+	@Override
+	public long getDataBytes()
+	{
+		return getBytes(PageType.DATA);
+	}
+
+
+	@Override
+	public long getDirtyHits()
+	{
+		return getHits(PageType.DIRTY);
+	}
+
+
+	@Override
+	public long getDirtyInserts()
+	{
+		return getInserts(PageType.DIRTY);
+	}
+
+
+	@Override
+	public long getDirtyBytes()
+	{
+		return getBytes(PageType.DIRTY);
+	}
+
+
+	@Override
+	public long getBlockHits()
+	{
+		return mBlockHits.sum();
+	}
+
+
+	@Override
+	public long getBlockMisses()
+	{
+		return mBlockMisses.sum();
+	}
+
+
+	@Override
+	public long getBlockBytes()
+	{
+		BlockCache cache = mBlockCache;
+		return cache == null ? 0 : (long)cache.size() * mPageSize;
+	}
+
+
+	/**
+	 * Resets all counters. Byte usage is not affected.
+	 */
+	@Override
+	public void reset()
+	{
+		for (PageType type : PageType.values())
+		{
+			mHits[type.ordinal()].reset();
+			mMisses[type.ordinal()].reset();
+			mEvictions[type.ordinal()].reset();
+			mInserts[type.ordinal()].reset();
+		}
+		mBlockHits.reset();
+		mBlockMisses.reset();
+	}
+
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (PageType type : PageType.values())
+		{
+			sb.append(String.format("%-5s hits=%d misses=%d evictions=%d inserts=%d bytes=%d%n", type, getHits(type), getMisses(type), getEvictions(type), getInserts(type), getBytes(type)));
+		}
+		sb.append(String.format("BLOCK hits=%d misses=%d bytes=%d", getBlockHits(), getBlockMisses(), getBlockBytes()));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,42 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * JMX management interface of CacheStatistics.
+ */
+public interface CacheStatisticsMBean
+{
+	long getIndexHits();
+
+	long getIndexMisses();
+
+	long getIndexEvictions();
+
+	long getIndexInserts();
+
+	long getIndexBytes();
+
+	long getDataHits();
+
+	long getDataMisses();
+
+	long getDataEvictions();
+
+	long getDataInserts();
+
+	long getDataBytes();
+
+	long getDirtyHits();
+
+	long getDirtyInserts();
+
+	long getDirtyBytes();
+
+	long getBlockHits();
+
+	long getBlockMisses();
+
+	long getBlockBytes();
+
+	void reset();
+}
@@ -0,0 +1,726 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A CompressedPageStore compresses pages before storing them in another
+ * PageStore. The underlying PageStore is used as an array of small sectors,
+ * its page size being the sector size, and each page is stored compressed in
+ * a slot of consecutive sectors:
+ *
+ * <pre>
+ * PageStore store = new CompressedPageStore(new FilePageStore(file, false, 512), 4096);
+ * </pre>
+ *
+ * Pages are compressed with Deflater at the fastest level. Pages that don't
+ * shrink by at least one sector are stored uncompressed. A mapping table from
+ * page index to slot is kept in memory and written to the underlying store by
+ * flush and close.<p>
+ *
+ * Slots are never overwritten while in use: a page written is stored in a new
+ * slot and the sectors of the previous slot are reused only after the next
+ * flush. Every slot starts with a header identifying the page, which is used
+ * together with the mapping table of the last flush to rebuild the mapping
+ * table when a store that wasn't closed is opened. Truncating isn't durable
+ * until the next flush.
+ */
+public class CompressedPageStore implements PageStore
+{
+	private final static boolean DEBUG = false;
+
+	private final static int SUPER_BLOCK_MAGIC = 0x43505331;
+	private final static int SLOT_MAGIC = 0x43505350;
+	private final static int SLOT_HEADER_SIZE = 32;
+	private final static int FLAG_RAW = 1;
+	private final static int MIN_PENDING_SECTORS = 256;
+
+	private final PageStore mStore;
+	private final int mPageSize;
+	private final int mSectorSize;
+	private final ThreadLocal<Deflater> mDeflaters;
+	private final ThreadLocal<Inflater> mInflaters;
+	private final TreeMap<Long,Long> mFreeByStart;
+	private final TreeSet<long[]> mFreeBySize;
+	private final ArrayList<long[]> mPendingFree;
+	private volatile long [] mMap;
+	private volatile long mPageCount;
+	private long mSequence;
+	private long mSectorCount;
+	private long mMapSector;
+	private int mMapSectors;
+	private long mPendingFreeSectors;
+	private long mUsedSectors;
+	private boolean mDirty;
+
+
+	/**
+	 * Opens or creates a compressed PageStore.
+	 *
+	 * @param aStore
+	 *   the PageStore holding the compressed pages. The page size of this
+	 *   store is the sector size, at most half the page size, 512 bytes or
+	 *   less is recommended.
+	 * @param aPageSize
+	 *   the size of a page.
+	 */
+	public CompressedPageStore(PageStore aStore, int aPageSize) throws IOException
+	{
+		mStore = aStore;
+		mPageSize = aPageSize;
+		mSectorSize = aStore.getPageSize();
+		mDeflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+		mInflaters = ThreadLocal.withInitial(Inflater::new);
+		mFreeByStart = new TreeMap<>();
+		mFreeBySize = new TreeSet<>((a, b) -> a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[0], b[0]));
+		mPendingFree = new ArrayList<>();
+
+		if (mSectorSize < 64)
+		{
+			throw new IllegalArgumentException("Sector size must be at least 64 bytes: " + mSectorSize);
+		}
+		if (mSectorSize * 2 > mPageSize)
+		{
+			throw new IllegalArgumentException("Sector size must be at most half the page size: page size: " + mPageSize + ", sector size: " + mSectorSize);
+		}
+		if (getSectorCount(mPageSize) > 0xFFFF)
+		{
+			throw new IllegalArgumentException("Page size too large for the sector size: page size: " + mPageSize + ", sector size: " + mSectorSize);
+		}
+
+		if (mStore.getPageCount() == 0)
+		{
+			mMap = new long[0];
+			mSectorCount = 1;
+			writeSuperBlock(true);
+		}
+		else if (readSuperBlock())
+		{
+			readMap();
+			initFreeSpace();
+		}
+		else
+		{
+			recover();
+			initFreeSpace();
+		}
+	}
+
+
+	private int getSectorCount(int aLength)
+	{
+		return (SLOT_HEADER_SIZE + aLength + mSectorSize - 1) / mSectorSize;
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Reads one or more pages from the PageStore. Pages never written are read
+	 * as zeros.
+	 */
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (DEBUG) System.out.println("read(page="+aPageIndex+", buffer="+aBuffer+", offset="+aOffset+", length="+aLength+")");
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength);
+		}
+		long pageCount = mPageCount;
+		if (aPageIndex > pageCount)
+		{
+			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " + pageCount);
+		}
+
+		for (int i = 0; i < aLength / mPageSize; i++)
+		{
+			readPage(aPageIndex + i, aBuffer, aOffset + i * mPageSize);
+		}
+	}
+
+
+	private void readPage(long aPageIndex, byte [] aBuffer, int aOffset) throws IOException
+	{
+		long [] map = mMap;
+		long entry = aPageIndex < map.length ? map[(int)aPageIndex] : 0;
+
+		if (entry == 0)
+		{
+			Arrays.fill(aBuffer, aOffset, aOffset + mPageSize, (byte)0);
+			return;
+		}
+
+		byte [] slot = new byte[(int)(entry & 0xFFFF) * mSectorSize];
+		mStore.read(entry >>> 16, slot);
+
+		ByteBuffer header = ByteBuffer.wrap(slot);
+		int length = header.getInt(20);
+
+		if (header.getInt(0) != SLOT_MAGIC || header.getLong(4) != aPageIndex || length < 0 || SLOT_HEADER_SIZE + length > slot.length)
+		{
+			throw new IOException("Illegal slot header: page index: " + aPageIndex + ", sector: " + (entry >>> 16));
+		}
+
+		if ((slot[24] & FLAG_RAW) != 0)
+		{
+			System.arraycopy(slot, SLOT_HEADER_SIZE, aBuffer, aOffset, mPageSize);
+			return;
+		}
+
+		Inflater inflater = mInflaters.get();
+		inflater.reset();
+		inflater.setInput(slot, SLOT_HEADER_SIZE, length);
+
+		try
+		{
+			int n = 0;
+			while (n < mPageSize && !inflater.finished())
+			{
+				int m = inflater.inflate(aBuffer, aOffset + n, mPageSize - n);
+				if (m == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					break;
+				}
+				n += m;
+			}
+			if (n != mPageSize)
+			{
+				throw new IOException("Compressed page is truncated: page index: " + aPageIndex);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Compressed page is corrupt: page index: " + aPageIndex, e);
+		}
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (DEBUG) System.out.println("write(page="+aPageIndex+", buffer="+aBuffer+", offset="+aOffset+", length="+aLength+")");
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength+", page-size: "+mPageSize);
+		}
+		if (aLength < 0 || aOffset+aLength > aBuffer.length)
+		{
+			throw new IllegalArgumentException("Index out of bounds: buffer offset: "+aOffset+", buffer length: "+aBuffer.length+", write: "+aLength);
+		}
+
+		for (int i = 0; i < aLength / mPageSize; i++)
+		{
+			writePage(aPageIndex + i, aBuffer, aOffset + i * mPageSize);
+		}
+	}
+
+
+	private void writePage(long aPageIndex, byte [] aBuffer, int aOffset) throws IOException
+	{
+		if (aPageIndex >= Integer.MAX_VALUE)
+		{
+			throw new IOException("Page index too large: " + aPageIndex);
+		}
+
+		int rawSectors = getSectorCount(mPageSize);
+		byte [] slot = new byte[rawSectors * mSectorSize];
+
+		// only pages saving at least one sector are stored compressed
+		int length = (rawSectors - 1) * mSectorSize - SLOT_HEADER_SIZE;
+		boolean raw = length <= 0;
+
+		if (!raw)
+		{
+			Deflater deflater = mDeflaters.get();
+			deflater.reset();
+			deflater.setInput(aBuffer, aOffset, mPageSize);
+			deflater.finish();
+
+			length = deflater.deflate(slot, SLOT_HEADER_SIZE, length);
+			raw = !deflater.finished();
+		}
+
+		if (raw)
+		{
+			length = mPageSize;
+			System.arraycopy(aBuffer, aOffset, slot, SLOT_HEADER_SIZE, mPageSize);
+		}
+
+		int sectors = getSectorCount(length);
+
+		synchronized (this)
+		{
+			markDirty();
+
+			long sector = allocate(sectors);
+
+			ByteBuffer header = ByteBuffer.wrap(slot);
+			header.putInt(0, SLOT_MAGIC);
+			header.putLong(4, aPageIndex);
+			header.putLong(12, mSequence++);
+			header.putInt(20, length);
+			slot[24] = (byte)(raw ? FLAG_RAW : 0);
+			header.putInt(28, computeChecksum(slot, length));
+
+			mStore.write(sector, slot, 0, sectors * mSectorSize);
+
+			long [] map = mMap;
+			if (aPageIndex >= map.length)
+			{
+				map = Arrays.copyOf(map, (int)Math.max(aPageIndex + 1, Math.min(Integer.MAX_VALUE, 2L * map.length)));
+			}
+
+			release(map[(int)aPageIndex]);
+
+			map[(int)aPageIndex] = (sector << 16) | sectors;
+			mMap = map;
+			mPageCount = Math.max(mPageCount, aPageIndex + 1);
+
+			mUsedSectors += sectors;
+
+			// replaced slots are reused after a flush, flushing often enough bounds the growth of the store
+			if (mPendingFreeSectors > Math.max(MIN_PENDING_SECTORS, mUsedSectors / 4))
+			{
+				flush();
+			}
+		}
+	}
+
+
+	private static int computeChecksum(byte [] aSlot, int aLength)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aSlot, 0, 28);
+		crc.update(aSlot, SLOT_HEADER_SIZE, aLength);
+		return (int)crc.getValue();
+	}
+
+
+	/**
+	 * Returns the first sector of a free run of sectors, extending the store
+	 * when there is no free run large enough.
+	 */
+	private long allocate(int aSectors)
+	{
+		long [] extent = mFreeBySize.ceiling(new long[]{Long.MIN_VALUE, aSectors});
+
+		if (extent == null)
+		{
+			long sector = mSectorCount;
+			mSectorCount += aSectors;
+			return sector;
+		}
+
+		mFreeBySize.remove(extent);
+		mFreeByStart.remove(extent[0]);
+
+		if (extent[1] > aSectors)
+		{
+			insertFree(extent[0] + aSectors, extent[1] - aSectors);
+		}
+
+		return extent[0];
+	}
+
+
+	/**
+	 * Frees the sectors of a slot after the next flush.
+	 */
+	private void release(long aEntry)
+	{
+		if (aEntry != 0)
+		{
+			mPendingFree.add(new long[]{aEntry >>> 16, aEntry & 0xFFFF});
+			mPendingFreeSectors += aEntry & 0xFFFF;
+			mUsedSectors -= aEntry & 0xFFFF;
+		}
+	}
+
+
+	private void free(long aStart, long aCount)
+	{
+		Map.Entry<Long,Long> lower = mFreeByStart.floorEntry(aStart);
+		if (lower != null && lower.getKey() + lower.getValue() == aStart)
+		{
+			removeFree(lower.getKey(), lower.getValue());
+			aStart = lower.getKey();
+			aCount += lower.getValue();
+		}
+
+		Long higher = mFreeByStart.get(aStart + aCount);
+		if (higher != null)
+		{
+			removeFree(aStart + aCount, higher);
+			aCount += higher;
+		}
+
+		if (aStart + aCount == mSectorCount)
+		{
+			mSectorCount = aStart;
+		}
+		else
+		{
+			insertFree(aStart, aCount);
+		}
+	}
+
+
+	private void insertFree(long aStart, long aCount)
+	{
+		mFreeByStart.put(aStart, aCount);
+		mFreeBySize.add(new long[]{aStart, aCount});
+	}
+
+
+	private void removeFree(long aStart, long aCount)
+	{
+		mFreeByStart.remove(aStart);
+		mFreeBySize.remove(new long[]{aStart, aCount});
+	}
+
+
+	/**
+	 * Builds the free space from the slots in use and the mapping table.
+	 */
+	private void initFreeSpace() throws IOException
+	{
+		ArrayList<long[]> used = new ArrayList<>();
+		for (long entry : mMap)
+		{
+			if (entry != 0)
+			{
+				used.add(new long[]{entry >>> 16, entry & 0xFFFF});
+				mUsedSectors += entry & 0xFFFF;
+			}
+		}
+		if (mMapSectors > 0)
+		{
+			used.add(new long[]{mMapSector, mMapSectors});
+		}
+
+		used.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		long sector = 1;
+		for (long [] extent : used)
+		{
+			if (extent[0] > sector)
+			{
+				insertFree(sector, extent[0] - sector);
+			}
+			sector = Math.max(sector, extent[0] + extent[1]);
+		}
+
+		mSectorCount = sector;
+	}
+
+
+	/**
+	 * Marks the mapping table in the store as out of date. Slots written never
+	 * overwrite sectors referenced by the mapping table, so a store closed
+	 * before the mark reaches the disk is opened in the state of the last
+	 * flush.
+	 */
+	private void markDirty() throws IOException
+	{
+		if (!mDirty)
+		{
+			mDirty = true;
+			writeSuperBlock(false);
+		}
+	}
+
+
+	private void writeSuperBlock(boolean aClean) throws IOException
+	{
+		byte [] buffer = new byte[mSectorSize];
+		ByteBuffer.wrap(buffer)
+			.putInt(SUPER_BLOCK_MAGIC)
+			.putInt(mPageSize)
+			.put((byte)(aClean ? 1 : 0))
+			.putLong(mPageCount)
+			.putLong(mSequence)
+			.putLong(mMapSector)
+			.putInt(mMapSectors);
+
+		mStore.write(0, buffer);
+	}
+
+
+	/**
+	 * Reads the super block.
+	 *
+	 * @return
+	 *   true if the store was closed and the mapping table is valid.
+	 */
+	private boolean readSuperBlock() throws IOException
+	{
+		byte [] buffer = new byte[mSectorSize];
+		mStore.read(0, buffer);
+
+		ByteBuffer superBlock = ByteBuffer.wrap(buffer);
+
+		if (superBlock.getInt() != SUPER_BLOCK_MAGIC)
+		{
+			throw new IOException("Not a compressed PageStore.");
+		}
+		if (superBlock.getInt() != mPageSize)
+		{
+			throw new IOException("Page size doesn't match the PageStore: " + mPageSize);
+		}
+
+		boolean clean = superBlock.get() == 1;
+		mPageCount = superBlock.getLong();
+		mSequence = superBlock.getLong();
+		mMapSector = superBlock.getLong();
+		mMapSectors = superBlock.getInt();
+
+		return clean;
+	}
+
+
+	private void readMap() throws IOException
+	{
+		long [] map = new long[(int)mPageCount];
+
+		if (mMapSectors > 0)
+		{
+			byte [] buffer = new byte[mMapSectors * mSectorSize];
+			mStore.read(mMapSector, buffer);
+			ByteBuffer.wrap(buffer).asLongBuffer().get(map);
+		}
+
+		mMap = map;
+	}
+
+
+	/**
+	 * Rebuilds the mapping table from the table written by the last flush and
+	 * the slots written after it, the newest slot of every page being the page
+	 * content. Slots written before the last flush are either referenced by
+	 * the table or stale.
+	 */
+	private void recover() throws IOException
+	{
+		readMap();
+
+		long sectorCount = mStore.getPageCount();
+		long flushSequence = mSequence;
+		long [] map = mMap;
+		long [] sequences = new long[map.length];
+		byte [] sector = new byte[mSectorSize];
+
+		for (long index = 1; index < sectorCount; )
+		{
+			mStore.read(index, sector);
+
+			ByteBuffer header = ByteBuffer.wrap(sector);
+			int length = header.getInt(20);
+
+			if (header.getInt(0) == SLOT_MAGIC && header.getLong(12) >= flushSequence && length >= 0 && length <= mPageSize && index + getSectorCount(length) <= sectorCount)
+			{
+				int sectors = getSectorCount(length);
+				byte [] slot = new byte[sectors * mSectorSize];
+				mStore.read(index, slot);
+
+				header = ByteBuffer.wrap(slot);
+				long pageIndex = header.getLong(4);
+				long sequence = header.getLong(12);
+
+				if (header.getInt(28) == computeChecksum(slot, length) && pageIndex >= 0 && pageIndex < Integer.MAX_VALUE)
+				{
+					if (pageIndex >= map.length)
+					{
+						int size = (int)Math.max(pageIndex + 1, Math.min(Integer.MAX_VALUE, 2L * map.length));
+						map = Arrays.copyOf(map, size);
+						sequences = Arrays.copyOf(sequences, size);
+					}
+
+					if (sequence >= sequences[(int)pageIndex])
+					{
+						map[(int)pageIndex] = (index << 16) | sectors;
+						sequences[(int)pageIndex] = sequence + 1;
+					}
+
+					mSequence = Math.max(mSequence, sequence + 1);
+					mPageCount = Math.max(mPageCount, pageIndex + 1);
+					index += sectors;
+					continue;
+				}
+			}
+
+			index++;
+		}
+
+		mMap = Arrays.copyOf(map, (int)mPageCount);
+		mDirty = true;
+	}
+
+
+	@Override
+	public long getPageCount()
+	{
+		return mPageCount;
+	}
+
+
+	@Override
+	public int getPageSize()
+	{
+		return mPageSize;
+	}
+
+
+	/**
+	 * Not supported, the page size is fixed when the PageStore is created.
+	 */
+	@Override
+	public void setPageSize(int aPageSize)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+
+	/**
+	 * Returns the number of bytes used in the underlying PageStore.
+	 */
+	public synchronized long getStoredSize()
+	{
+		return mSectorCount * mSectorSize;
+	}
+
+
+	@Override
+	public synchronized void truncate(long aPageCount) throws IOException
+	{
+		if (aPageCount < 0)
+		{
+			throw new IllegalArgumentException("Negative page count: " + aPageCount);
+		}
+		if (aPageCount >= mPageCount)
+		{
+			return;
+		}
+
+		markDirty();
+
+		long [] map = mMap;
+		for (long i = aPageCount; i < Math.min(map.length, mPageCount); i++)
+		{
+			release(map[(int)i]);
+		}
+
+		mMap = Arrays.copyOf(map, (int)aPageCount);
+		mPageCount = aPageCount;
+	}
+
+
+	@Override
+	public boolean isTruncateSupported()
+	{
+		return true;
+	}
+
+
+	/**
+	 * Writes the mapping table and releases the sectors of replaced slots.
+	 */
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		if (mDirty)
+		{
+			int mapSectors = (int)((mPageCount * 8 + mSectorSize - 1) / mSectorSize);
+			long mapSector = mapSectors == 0 ? 0 : allocate(mapSectors);
+
+			if (mapSectors > 0)
+			{
+				byte [] buffer = new byte[mapSectors * mSectorSize];
+				ByteBuffer.wrap(buffer).asLongBuffer().put(mMap, 0, (int)mPageCount);
+				mStore.write(mapSector, buffer);
+				mStore.flush();
+			}
+
+			if (mMapSectors > 0)
+			{
+				mPendingFree.add(new long[]{mMapSector, mMapSectors});
+			}
+
+			mMapSector = mapSector;
+			mMapSectors = mapSectors;
+			mDirty = false;
+
+			writeSuperBlock(true);
+		}
+
+		mStore.flush();
+
+		// the slots replaced aren't referenced by the mapping table written
+		for (long [] extent : mPendingFree)
+		{
+			free(extent[0], extent[1]);
+		}
+		mPendingFree.clear();
+		mPendingFreeSectors = 0;
+
+		// the file is shrunk when a significant part is free, truncating is costly on some file systems
+		if (mStore.isTruncateSupported() && mStore.getPageCount() - mSectorCount > mSectorCount / 8)
+		{
+			mStore.truncate(mSectorCount);
+		}
+	}
+
+
+	/**
+	 * Writes the mapping table and closes the underlying PageStore.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			flush();
+
+			if (mStore.isTruncateSupported() && mSectorCount < mStore.getPageCount())
+			{
+				mStore.truncate(mSectorCount);
+			}
+		}
+		finally
+		{
+			mStore.close();
+		}
+	}
+}
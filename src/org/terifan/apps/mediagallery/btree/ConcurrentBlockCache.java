@@ -0,0 +1,66 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * A BlockCache keeping page content on the heap that can be read by multiple
+ * threads without serializing on a single lock.
+ */
+class ConcurrentBlockCache implements BlockCache
+{
+	private ConcurrentCache<Long,byte[]> mCache;
+
+
+	public ConcurrentBlockCache(long aCapacity, int aConcurrencyLevel)
+	{
+		mCache = new ConcurrentCache<>(aCapacity, aConcurrencyLevel, TwoQueueEvictionPolicy::new);
+	}
+
+
+	@Override
+	public byte [] get(long aPageIndex, boolean aLowPriority)
+	{
+		return mCache.get(aPageIndex, aLowPriority);
+	}
+
+
+	@Override
+	public void put(long aPageIndex, byte [] aBuffer, boolean aLowPriority)
+	{
+		mCache.put(aPageIndex, aBuffer, aBuffer.length, aLowPriority);
+	}
+
+
+	@Override
+	public void remove(long aPageIndex)
+	{
+		mCache.remove(aPageIndex);
+	}
+
+
+	@Override
+	public void clear()
+	{
+		mCache.clear();
+	}
+
+
+	@Override
+	public void setCapacity(long aCapacity)
+	{
+		mCache.setCapacity(aCapacity);
+	}
+
+
+	@Override
+	public long getCapacity()
+	{
+		return mCache.getCapacity();
+	}
+
+
+	@Override
+	public int size()
+	{
+		return mCache.size();
+	}
+}
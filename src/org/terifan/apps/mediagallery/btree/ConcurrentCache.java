@@ -0,0 +1,376 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import org.terifan.apps.mediagallery.btree.Cache.Entry;
+
+
+/**
+ * A thread safe variant of Cache for concurrent readers. Keys are spread over
+ * segments each with its own lock, eviction policy and a share of the
+ * capacity.<p>
+ *
+ * Reads don't lock. A read looks up the entry in a concurrent map and records
+ * the access in a lossy ring buffer of the segment. The buffer is replayed to
+ * the eviction policy by the thread that manages to acquire the segment lock
+ * without waiting once the buffer is half full, or before any write. Recency
+ * is therefore approximate: accesses may be applied late or dropped under
+ * heavy contention.
+ *
+ * @param <K>
+ *   the key type used by this cache
+ * @param <V>
+ *   the value type used by this cache
+ */
+class ConcurrentCache<K,V>
+{
+	private final static int READ_BUFFER_SIZE = 64;
+	private final static int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+	private Segment<K,V> [] mSegments;
+	private int mSegmentMask;
+	private long mCapacity;
+
+
+	private static class Segment<K,V>
+	{
+		final ReentrantLock mLock = new ReentrantLock();
+		final ConcurrentHashMap<K,Entry<K,V>> mEntries = new ConcurrentHashMap<>();
+		final AtomicReferenceArray<Entry<K,V>> mReadBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+		final AtomicInteger mReadCounter = new AtomicInteger();
+		EvictionPolicy<K,V> mPolicy;
+		long mCapacity;
+		long mUsedSize;
+	}
+
+
+	/**
+	 * Constructs a cache with a concurrency level relative to the number of
+	 * processors and LRU eviction.
+	 */
+	public ConcurrentCache(long aCapacity)
+	{
+		this(aCapacity, defaultConcurrencyLevel(), LRUEvictionPolicy::new);
+	}
+
+
+	/**
+	 * @param aCapacity
+	 *   capacity of this Cache, divided evenly among the segments
+	 * @param aConcurrencyLevel
+	 *   number of segments, rounded up to a power of two
+	 * @param aPolicyFactory
+	 *   creates the eviction policy of each segment
+	 */
+	public ConcurrentCache(long aCapacity, int aConcurrencyLevel, Supplier<EvictionPolicy<K,V>> aPolicyFactory)
+	{
+		int n = 1;
+		while (n < aConcurrencyLevel)
+		{
+			n <<= 1;
+		}
+
+		mSegments = newSegments(n);
+		mSegmentMask = n - 1;
+
+		for (int i = 0; i < n; i++)
+		{
+			mSegments[i] = new Segment<>();
+			mSegments[i].mPolicy = aPolicyFactory.get();
+		}
+
+		setCapacity(aCapacity);
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static <K,V> Segment<K,V> [] newSegments(int aLength)
+	{
+		return (Segment<K,V> [])new Segment<?,?>[aLength];
+	}
+
+
+	private static int defaultConcurrencyLevel()
+	{
+		return Math.min(64, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+
+	private Segment<K,V> segmentFor(Object aKey)
+	{
+		int h = aKey.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return mSegments[h & mSegmentMask];
+	}
+
+
+	public V get(K aKey)
+	{
+		return get(aKey, false);
+	}
+
+
+	/**
+	 * Returns the value to which the specified key is mapped or null.
+	 *
+	 * @param aLowPriority
+	 *   true if the read is made by a scan, in which case the access isn't
+	 *   recorded.
+	 */
+	public V get(K aKey, boolean aLowPriority)
+	{
+		Segment<K,V> segment = segmentFor(aKey);
+
+		Entry<K,V> entry = segment.mEntries.get(aKey);
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		V value = entry.value;
+
+		if (!aLowPriority)
+		{
+			recordAccess(segment, entry);
+		}
+
+		return value;
+	}
+
+
+	public V put(K aKey, V aValue, long aItemSize)
+	{
+		return put(aKey, aValue, aItemSize, false);
+	}
+
+
+	/**
+	 * Associates the specified value with the specified key. Items larger
+	 * than the capacity of a segment are rejected and any previous value of
+	 * the key removed.
+	 *
+	 * @return
+	 *   the previous value or null
+	 */
+	public V put(K aKey, V aValue, long aItemSize, boolean aLowPriority)
+	{
+		Segment<K,V> segment = segmentFor(aKey);
+
+		segment.mLock.lock();
+		try
+		{
+			drainReadBuffer(segment);
+
+			if (aItemSize > segment.mCapacity)
+			{
+				return removeImpl(segment, aKey, false);
+			}
+
+			Entry<K,V> entry = segment.mEntries.get(aKey);
+			V prevValue;
+
+			if (entry != null)
+			{
+				prevValue = entry.value;
+
+				long prevSize = entry.size;
+				segment.mUsedSize += aItemSize - prevSize;
+
+				entry.value = aValue;
+				entry.size = aItemSize;
+
+				segment.mPolicy.updated(entry, prevSize, aLowPriority);
+			}
+			else
+			{
+				prevValue = null;
+
+				entry = new Entry<>();
+				entry.key = aKey;
+				entry.value = aValue;
+				entry.size = aItemSize;
+
+				segment.mUsedSize += aItemSize;
+				segment.mEntries.put(aKey, entry);
+				segment.mPolicy.inserted(entry, aLowPriority);
+			}
+
+			shrink(segment);
+
+			return prevValue;
+		}
+		finally
+		{
+			segment.mLock.unlock();
+		}
+	}
+
+
+	public V remove(K aKey)
+	{
+		Segment<K,V> segment = segmentFor(aKey);
+
+		segment.mLock.lock();
+		try
+		{
+			return removeImpl(segment, aKey, false);
+		}
+		finally
+		{
+			segment.mLock.unlock();
+		}
+	}
+
+
+	public void clear()
+	{
+		for (Segment<K,V> segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				for (int i = 0; i < READ_BUFFER_SIZE; i++)
+				{
+					segment.mReadBuffer.set(i, null);
+				}
+				segment.mEntries.clear();
+				segment.mPolicy.clear();
+				segment.mUsedSize = 0;
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Sets the capacity of this Cache. Each segment receives an equal share of
+	 * the capacity.
+	 */
+	public void setCapacity(long aCapacity)
+	{
+		mCapacity = aCapacity;
+
+		for (Segment<K,V> segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				segment.mCapacity = aCapacity / mSegments.length;
+				drainReadBuffer(segment);
+				shrink(segment);
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+	}
+
+
+	public long getCapacity()
+	{
+		return mCapacity;
+	}
+
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment<K,V> segment : mSegments)
+		{
+			size += segment.mEntries.size();
+		}
+		return size;
+	}
+
+
+	public long getUsedSize()
+	{
+		long size = 0;
+		for (Segment<K,V> segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				size += segment.mUsedSize;
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+		return size;
+	}
+
+
+	private void recordAccess(Segment<K,V> aSegment, Entry<K,V> aEntry)
+	{
+		int i = aSegment.mReadCounter.getAndIncrement();
+
+		aSegment.mReadBuffer.lazySet(i & (READ_BUFFER_SIZE - 1), aEntry);
+
+		if ((i & (DRAIN_THRESHOLD - 1)) == DRAIN_THRESHOLD - 1 && aSegment.mLock.tryLock())
+		{
+			try
+			{
+				drainReadBuffer(aSegment);
+			}
+			finally
+			{
+				aSegment.mLock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Replays recorded reads to the eviction policy, must hold the segment lock.
+	 */
+	private void drainReadBuffer(Segment<K,V> aSegment)
+	{
+		for (int i = 0; i < READ_BUFFER_SIZE; i++)
+		{
+			Entry<K,V> entry = aSegment.mReadBuffer.getAndSet(i, null);
+
+			// entries removed after the read was recorded are ignored
+			if (entry != null && aSegment.mEntries.get(entry.key) == entry)
+			{
+				aSegment.mPolicy.accessed(entry, false);
+			}
+		}
+	}
+
+
+	private void shrink(Segment<K,V> aSegment)
+	{
+		while (aSegment.mUsedSize > aSegment.mCapacity && !aSegment.mEntries.isEmpty())
+		{
+			removeImpl(aSegment, aSegment.mPolicy.victim(aSegment.mCapacity).key, true);
+		}
+	}
+
+
+	private V removeImpl(Segment<K,V> aSegment, K aKey, boolean aEvicted)
+	{
+		Entry<K,V> entry = aSegment.mEntries.remove(aKey);
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		aSegment.mPolicy.removed(entry, aEvicted);
+		aSegment.mUsedSize -= entry.size;
+
+		return entry.value;
+	}
+}
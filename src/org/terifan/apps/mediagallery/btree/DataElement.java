@@ -6,8 +6,17 @@ import java.util.Arrays;
 
 class DataElement
 {
+	/**
+	 * Content length stored in an element whose content is stored in
+	 * overflow pages. The length and the first overflow page follow.
+	 */
+	final static int OVERFLOW = 0xFFFF;
+	final static int OVERFLOW_SIZE = 4 + 5;
+
 	byte [] mKey;
 	byte [] mContent;
+	long mOverflowPageIndex;
+	int mOverflowLength;
 
 
 	DataElement()
@@ -22,9 +31,13 @@ class DataElement
 	}
 
 
+	/**
+	 * Returns the number of bytes this element occupies in a page including
+	 * its slot.
+	 */
 	int size()
 	{
-		return 1 + mKey.length + 2 + mContent.length;
+		return Page.SLOT_SIZE + 1 + mKey.length + 2 + (isOverflow() ? OVERFLOW_SIZE : mContent.length);
 	}
 
 
@@ -32,8 +45,18 @@ class DataElement
 	{
 		aByteBuffer.put(mKey.length-1);
 		aByteBuffer.put(mKey);
-		aByteBuffer.putShort(mContent.length);
-		aByteBuffer.put(mContent);
+
+		if (isOverflow())
+		{
+			aByteBuffer.putShort(OVERFLOW);
+			aByteBuffer.putInt(mOverflowLength);
+			aByteBuffer.putNumber(mOverflowPageIndex, 5);
+		}
+		else
+		{
+			aByteBuffer.putShort(mContent.length);
+			aByteBuffer.put(mContent);
+		}
 	}
 
 
@@ -41,8 +64,42 @@ class DataElement
 	{
 		mKey = new byte[aByteBuffer.getUnsignedByte()+1];
 		aByteBuffer.get(mKey);
-		mContent = new byte[aByteBuffer.getUnsignedShort()];
-		aByteBuffer.get(mContent);
+
+		int length = aByteBuffer.getUnsignedShort();
+
+		if (length == OVERFLOW)
+		{
+			mContent = null;
+			mOverflowLength = aByteBuffer.getInt();
+			mOverflowPageIndex = aByteBuffer.getNumber(5);
+		}
+		else
+		{
+			mContent = new byte[length];
+			aByteBuffer.get(mContent);
+		}
+	}
+
+
+	/**
+	 * Returns true if the content is stored in overflow pages and not in the
+	 * element.
+	 */
+	boolean isOverflow()
+	{
+		return mOverflowPageIndex != 0;
+	}
+
+
+	/**
+	 * Copies the content, or the reference to the overflow pages, of another
+	 * element.
+	 */
+	void setContent(DataElement aDataElement)
+	{
+		mContent = aDataElement.mContent;
+		mOverflowPageIndex = aDataElement.mOverflowPageIndex;
+		mOverflowLength = aDataElement.mOverflowLength;
 	}
 
 
@@ -52,6 +109,10 @@ class DataElement
 	}
 
 
+	/**
+	 * Returns the content. Elements whose content is stored in overflow pages
+	 * are returned by the iterators of the tree with the content read.
+	 */
 	public byte [] getContent()
 	{
 		return mContent;
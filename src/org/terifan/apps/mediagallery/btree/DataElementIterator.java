@@ -1,13 +1,17 @@
 package org.terifan.apps.mediagallery.btree;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 
 
 public class DataElementIterator implements Iterator<DataElement>, Iterable<DataElement>
 {
+	private final static int PREFETCH_PAGES = 8;
+
 	private long mNextDataPageIndex;
 	private ArrayList<DataElement> mDataElements;
 	private int mNextDataElement;
@@ -15,6 +19,9 @@ public class DataElementIterator implements Iterator<DataElement>, Iterable<Data
 	private long mFailFastCounter;
 	private byte [] mPrefix;
 	private boolean mIsEOF;
+	private IndexPage [] mPath;
+	private int [] mPathChildren;
+	private ArrayDeque<Long> mPrefetched;
 
 
 	DataElementIterator(BTree aTree, long aPageIndex)
@@ -42,23 +49,70 @@ public class DataElementIterator implements Iterator<DataElement>, Iterable<Data
 			}
 
 			mNextDataPageIndex = ((DataPage)page).getNextDataPageIndex();
-			mNextDataElement = -1;
+			mNextDataElement = ((DataPage)page).findInsertPosition(mPrefix);
 			mDataElements = ((DataPage)page).getElements();
+		}
+		catch (TreeIntegrityException | IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Sets the index pages leading to the first data page of this iterator.
+	 * The path is advanced ahead of the iterator to prefetch the data pages
+	 * it's about to visit.
+	 *
+	 * @param aPath
+	 *   the index pages from the root down to the parent of the first data
+	 *   page.
+	 * @param aChildren
+	 *   the child followed in each index page, zero being the first page.
+	 */
+	void setPath(IndexPage [] aPath, int [] aChildren)
+	{
+		if (aPath.length == 0 || !mTree.getTransactionLog().isPrefetchSupported())
+		{
+			return;
+		}
+
+		mPath = aPath;
+		mPathChildren = aChildren;
+		mPrefetched = new ArrayDeque<>();
+
+		prefetch();
+	}
+
 
-			for (int i = mDataElements.size(); --i >= 0;)
+	private void prefetch()
+	{
+		if (mPrefetched.size() > PREFETCH_PAGES / 2)
+		{
+			return;
+		}
+
+		try
+		{
+			long [] indices = new long[PREFETCH_PAGES - mPrefetched.size()];
+			int count = 0;
+
+			while (count < indices.length)
 			{
-				//System.out.println(new String(mPrefix)+", "+new String(mDataElements.get(i).mKey));
+				long index = advancePath();
 
-				if (BTree.compare(mPrefix, mDataElements.get(i).mKey) >= 0)
+				if (index == -1)
 				{
-					mNextDataElement = i;
 					break;
 				}
+
+				indices[count++] = index;
+				mPrefetched.add(index);
 			}
 
-			if (mNextDataElement == -1)
+			if (count > 0)
 			{
-				mIsEOF = true;
+				mTree.getTransactionLog().prefetch(Arrays.copyOf(indices, count));
 			}
 		}
 		catch (TreeIntegrityException | IOException e)
@@ -68,6 +122,48 @@ public class DataElementIterator implements Iterator<DataElement>, Iterable<Data
 	}
 
 
+	/**
+	 * Moves the path to the next data page.
+	 *
+	 * @return
+	 *   the index of the data page or -1 at the end of the tree.
+	 */
+	private long advancePath() throws IOException
+	{
+		int last = mPath.length - 1;
+		int level = last;
+
+		while (level >= 0 && mPathChildren[level] + 1 >= mPath[level].getChildCount())
+		{
+			level--;
+		}
+
+		if (level < 0)
+		{
+			return -1;
+		}
+
+		mPathChildren[level]++;
+
+		for (level++; level <= last; level++)
+		{
+			IndexPage parent = mPath[level - 1];
+			long index = parent.getChildPageIndex(mPathChildren[level - 1]);
+			Page page = mTree.loadPage(parent, index);
+
+			if (!(page instanceof IndexPage))
+			{
+				throw new TreeIntegrityException("Not an index page: page index: " + index);
+			}
+
+			mPath[level] = (IndexPage)page;
+			mPathChildren[level] = 0;
+		}
+
+		return mPath[last].getChildPageIndex(mPathChildren[last]);
+	}
+
+
 	@Override
 	public boolean hasNext()
 	{
@@ -94,9 +190,24 @@ public class DataElementIterator implements Iterator<DataElement>, Iterable<Data
 			return false;
 		}
 
+		if (mPath != null && mDataElements != null)
+		{
+			// stop prefetching if the data pages aren't linked in key order
+			Long expected = mPrefetched.poll();
+
+			if (expected != null && expected == mNextDataPageIndex)
+			{
+				prefetch();
+			}
+			else
+			{
+				mPath = null;
+			}
+		}
+
 		try
 		{
-			Page page = mTree.loadPage(null, mNextDataPageIndex);
+			Page page = mTree.loadPage(null, mNextDataPageIndex, true);
 
 			if (!(page instanceof DataPage))
 			{
@@ -123,7 +234,23 @@ public class DataElementIterator implements Iterator<DataElement>, Iterable<Data
 		{
 			return null;
 		}
-		return mDataElements.get(mNextDataElement++);
+
+		DataElement element = mDataElements.get(mNextDataElement++);
+
+		// the elements belong to a cached page, return a copy
+		if (element.isOverflow())
+		{
+			try
+			{
+				return new DataElement(element.mKey.clone(), mTree.getContent(element));
+			}
+			catch (TreeIntegrityException | IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		return new DataElement(element.mKey.clone(), element.mContent.clone());
 	}
 
 
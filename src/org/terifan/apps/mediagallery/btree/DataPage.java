@@ -2,6 +2,7 @@ package org.terifan.apps.mediagallery.btree;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 class DataPage extends Page
@@ -52,22 +53,7 @@ class DataPage extends Page
 	{
 		if (mUsedSize + aDataElement.size() > mTree.getPageSize())
 		{
-			boolean done = false;
-
-			for (int i = 0; i < mElements.size(); i++)
-			{
-				if (BTree.compare(mElements.get(i).getKey(), aDataElement.getKey()) >= 0)
-				{
-					mElements.add(i, aDataElement);
-					done = true;
-					break;
-				}
-			}
-
-			if (!done)
-			{
-				mElements.add(aDataElement);
-			}
+			mElements.add(findInsertPosition(aDataElement.getKey()), aDataElement);
 
 			mUsedSize += aDataElement.size();
 
@@ -98,13 +84,13 @@ class DataPage extends Page
 				leftDataPage.mNextDataPageIndex = rightDataPage.getPageIndex();
 				rightDataPage.mPreviousDataPageIndex = leftDataPage.getPageIndex();
 
-				leftDataPage.write();
-				rightDataPage.write();
+				leftDataPage.markDirty();
+				rightDataPage.markDirty();
 
-				newIndexPage.setPageIndex(0);
+				newIndexPage.setPageIndex(mTree.getRootPageIndex());
 				newIndexPage.setFirstPageIndex(leftDataPage.getPageIndex());
 				newIndexPage.getElements().add(new IndexElement(rightDataPage.mElements.get(0).getKey(), rightDataPage.getPageIndex()));
-				newIndexPage.write();
+				newIndexPage.markDirty();
 			}
 			else
 			{
@@ -301,23 +287,23 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 						dataPage.mPreviousDataPageIndex = prevDataPage.getPageIndex();
 					}
 
-					dataPage.write();
+					dataPage.markDirty();
 
 					if (prevDataPage != null)
 					{
 						prevDataPage.mNextDataPageIndex = dataPage.getPageIndex();
-						prevDataPage.write();
+						prevDataPage.markDirty();
 					}
 				}
 
 				dataPage.mNextDataPageIndex = rightLink;
-				dataPage.write();
+				dataPage.markDirty();
 
 				if (dataPage.mNextDataPageIndex != 0)
 				{
 					DataPage page = (DataPage)mTree.loadPage(null, dataPage.mNextDataPageIndex);
 					page.mPreviousDataPageIndex = dataPage.getPageIndex();
-					page.write();
+					page.markDirty();
 				}
 
 				for (int i = 1; i < pages.size(); i++)
@@ -333,54 +319,47 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 
 		mUsedSize += aDataElement.size();
 
-		for (int i = 0; i < mElements.size(); i++)
-		{
-			if (BTree.compare(mElements.get(i).getKey(), aDataElement.getKey()) >= 0)
-			{
-				mElements.add(i, aDataElement);
-				write();
-				return;
-			}
-		}
-
-		mElements.add(aDataElement);
-		write();
+		mElements.add(findInsertPosition(aDataElement.getKey()), aDataElement);
+		markDirty();
 	}
 
 
 	@Override
 	public int remove(IndexPage aParent, DataElement aDataElement) throws IOException, TreeIntegrityException
 	{
-		if (!get(aDataElement))
+		int index = indexOf(aDataElement.getKey());
+
+		if (index < 0)
 		{
 			return 0;
 		}
 
-		mElements.remove(aDataElement);
-		mUsedSize -= aDataElement.size();
+		DataElement element = mElements.remove(index);
+		aDataElement.setContent(element);
+		mUsedSize -= element.size();
 
 		if (!mElements.isEmpty())
 		{
-			write();
+			markDirty();
 			return 1;
 		}
 
 		// Page is empty and will be terminated by the parent page.
 
-		write();
+		markDirty();
 
 		if (mPreviousDataPageIndex != 0)
 		{
 			DataPage page = (DataPage)mTree.loadPage(null, mPreviousDataPageIndex);
 			page.mNextDataPageIndex = mNextDataPageIndex;
-			page.write();
+			page.markDirty();
 		}
 
 		if (mNextDataPageIndex != 0)
 		{
 			DataPage page = (DataPage)mTree.loadPage(null, mNextDataPageIndex);
 			page.mPreviousDataPageIndex = mPreviousDataPageIndex;
-			page.write();
+			page.markDirty();
 		}
 
 		return 2;
@@ -390,16 +369,16 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 	@Override
 	public boolean get(DataElement aDataElement) throws IOException, TreeIntegrityException
 	{
-		for (int i = 0; i < mElements.size(); i++)
+		int index = indexOf(aDataElement.mKey);
+
+		if (index < 0)
 		{
-			if (BTree.compare(aDataElement.mKey, mElements.get(i).mKey) == 0)
-			{
-				aDataElement.mContent = mElements.get(i).mContent;
-				return true;
-			}
+			return false;
 		}
 
-		return false;
+		aDataElement.setContent(mElements.get(index));
+
+		return true;
 	}
 
 
@@ -416,21 +395,43 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 		if (mTerminated)
 		{
 			buffer.put('X');
+			buffer.putNumber(mTree.freePage(mPageIndex), 5);
 		}
 		else
 		{
-			buffer.put('D');
+			// a page read in the legacy format may not fit the slotted format
+			// until it has been split or elements have been removed
+			boolean slotted = mUsedSize <= mTree.getPageSize();
+
+			buffer.put(slotted ? 'd' : 'D');
 			buffer.putNumber(mPreviousDataPageIndex, 5);
 			buffer.putNumber(mNextDataPageIndex, 5);
 			buffer.putShort(mElements.size());
 
-			for (int i = 0; i < mElements.size(); i++)
+			if (slotted)
+			{
+				for (int i = 0, offset = buffer.capacity(); i < mElements.size(); i++)
+				{
+					DataElement element = mElements.get(i);
+					offset -= element.size() - SLOT_SIZE;
+
+					buffer.putShort(HEADER_SIZE + i * SLOT_SIZE, offset);
+					buffer.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, keyHead(element.mKey));
+					buffer.position(offset);
+					element.write(buffer);
+				}
+			}
+			else
 			{
-				mElements.get(i).write(buffer);
+				for (int i = 0; i < mElements.size(); i++)
+				{
+					mElements.get(i).write(buffer);
+				}
 			}
 		}
 
 		mTree.getTransactionLog().write(mPageIndex, buffer.array());
+		mTree.pageWritten(this);
 	}
 
 
@@ -443,7 +444,9 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 
 		mTree.getTransactionLog().read(mPageIndex, buffer.array());
 
-		if (buffer.getUnsignedByte() != 'D')
+		int type = buffer.getUnsignedByte();
+
+		if (type != 'd' && type != 'D')
 		{
 			throw new TreeIntegrityException("Not a data page: page index: " + mPageIndex);
 		}
@@ -452,14 +455,26 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 	}
 
 
+	/**
+	 * Decodes the elements of a page. Slotted pages, type 'd', store a slot
+	 * directory after the header and the elements from the end of the page.
+	 * Legacy pages, type 'D', store the elements in sequence after the header.
+	 */
 	private void parseElements(ByteBuffer aBuffer) throws IOException, TreeIntegrityException
 	{
+		boolean slotted = aBuffer.getUnsignedByte(0) == 'd';
+
 		mPreviousDataPageIndex = aBuffer.getNumber(5);
 		mNextDataPageIndex = aBuffer.getNumber(5);
 		mUsedSize = HEADER_SIZE;
 
-		for (int i = aBuffer.getUnsignedShort(); --i >= 0;)
+		for (int i = 0, sz = aBuffer.getUnsignedShort(); i < sz; i++)
 		{
+			if (slotted)
+			{
+				aBuffer.position(aBuffer.getUnsignedShort(HEADER_SIZE + i * SLOT_SIZE));
+			}
+
 			DataElement element = new DataElement();
 			element.read(aBuffer);
 			mElements.add(element);
@@ -468,6 +483,124 @@ if(ss!=mUsedSize) throw new IllegalStateException("ss!=mUsedSize: "+ss);
 	}
 
 
+	/**
+	 * Binary search for an element with the key provided.
+	 *
+	 * @return
+	 *   the index of the element or (-(insertion point) - 1) if the key
+	 *   doesn't exist, the insertion point being the index of the first
+	 *   element with a greater key.
+	 */
+	int indexOf(byte [] aKey)
+	{
+		int low = 0;
+		int high = mElements.size() - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int c = BTree.compare(mElements.get(mid).mKey, aKey);
+
+			if (c < 0)
+			{
+				low = mid + 1;
+			}
+			else if (c > 0)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+
+	/**
+	 * Binary search for a key in a serialized slotted data page without
+	 * decoding the page.
+	 *
+	 * @param aPage
+	 *   the bytes of a page with type 'd'.
+	 * @return
+	 *   the offset in the page of the two byte content length that precedes
+	 *   the content of the element or -1 if the key doesn't exist.
+	 */
+	static int findContent(byte [] aPage, byte [] aKey)
+	{
+		int head = keyHead(aKey);
+		int low = 0;
+		int high = (((aPage[HEADER_SIZE - 2] & 255) << 8) + (aPage[HEADER_SIZE - 1] & 255)) - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int slot = HEADER_SIZE + mid * SLOT_SIZE;
+			int c = (((aPage[slot + 2] & 255) << 8) + (aPage[slot + 3] & 255)) - head;
+
+			if (c == 0)
+			{
+				int offset = ((aPage[slot] & 255) << 8) + (aPage[slot + 1] & 255);
+				int keyLength = (aPage[offset] & 255) + 1;
+
+				c = Arrays.compareUnsigned(aPage, offset + 1, offset + 1 + keyLength, aKey, 0, aKey.length);
+
+				if (c == 0)
+				{
+					return offset + 1 + keyLength;
+				}
+			}
+
+			if (c < 0)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the index of the first element with a key greater than or equal
+	 * to the key provided.
+	 */
+	int findInsertPosition(byte [] aKey)
+	{
+		int index = indexOf(aKey);
+
+		return index < 0 ? -(index + 1) : index;
+	}
+
+
+	/**
+	 * Updates the links of the neighbour pages after this page has been moved.
+	 */
+	void relocateLinks() throws IOException, TreeIntegrityException
+	{
+		if (mPreviousDataPageIndex != 0)
+		{
+			DataPage page = (DataPage)mTree.loadPage(null, mPreviousDataPageIndex);
+			page.mNextDataPageIndex = mPageIndex;
+			page.markDirty();
+		}
+
+		if (mNextDataPageIndex != 0)
+		{
+			DataPage page = (DataPage)mTree.loadPage(null, mNextDataPageIndex);
+			page.mPreviousDataPageIndex = mPageIndex;
+			page.markDirty();
+		}
+	}
+
+
 	ArrayList<DataElement> getElements()
 	{
 		return mElements;
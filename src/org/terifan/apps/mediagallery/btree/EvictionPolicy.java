@@ -0,0 +1,61 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.Iterator;
+import org.terifan.apps.mediagallery.btree.Cache.Entry;
+
+
+/**
+ * An EvictionPolicy decides the order in which a Cache removes items. The
+ * Cache owns the entries and notifies the policy about every change, the
+ * policy keeps the entries linked in its own lists.
+ */
+interface EvictionPolicy<K,V>
+{
+	/**
+	 * Called when a new entry has been added to the Cache.
+	 *
+	 * @param aLowPriority
+	 *   true if the entry was inserted by a scan
+	 */
+	void inserted(Entry<K,V> aEntry, boolean aLowPriority);
+
+
+	/**
+	 * Called when an entry has been read from the Cache.
+	 *
+	 * @param aLowPriority
+	 *   true if the entry was read by a scan
+	 */
+	void accessed(Entry<K,V> aEntry, boolean aLowPriority);
+
+
+	/**
+	 * Called when the value of an entry has been replaced.
+	 */
+	void updated(Entry<K,V> aEntry, long aPreviousSize, boolean aLowPriority);
+
+
+	/**
+	 * Called when an entry has been removed from the Cache.
+	 *
+	 * @param aEvicted
+	 *   true if the entry was removed to make room for other entries
+	 */
+	void removed(Entry<K,V> aEntry, boolean aEvicted);
+
+
+	/**
+	 * Returns the entry that should be removed next. Only called when the
+	 * Cache isn't empty.
+	 */
+	Entry<K,V> victim(long aCapacity);
+
+
+	/**
+	 * Returns the entries, most valuable entry first.
+	 */
+	Iterator<Entry<K,V>> iterator();
+
+
+	void clear();
+}
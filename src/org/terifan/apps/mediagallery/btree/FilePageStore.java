@@ -1,27 +1,45 @@
 package org.terifan.apps.mediagallery.btree;
 
+import com.sun.nio.file.ExtendedOpenOption;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * A FilePageStore is a random access storage of pages, stored in a native file.
- * All pages are the same size and accessed by their index in the PageStore.
+ * All pages are the same size and accessed by their index in the PageStore.<p>
+ *
+ * Pages are read and written with positional I/O on a FileChannel without
+ * any lock, allowing concurrent readers and writers to do I/O in parallel.
+ * Callers must not read and write the same page concurrently.<p>
+ *
+ * The file can be opened for direct I/O, bypassing the page cache of the
+ * operating system. The block cache of the tree is then the only cache of
+ * pages, which should be sized accordingly. Direct I/O requires a page size
+ * that is a multiple of the block size of the file system and transfers
+ * pages through aligned direct buffers, one per thread.<p>
  *
  * Implementation note: the FilePageStore should always be closed in a finally
- * block. However, the object can be constructed outside a try..finally since
- * the underlying RandomAccessStream is created on the first read/write
- * operation.
+ * block.
  */
 public class FilePageStore implements PageStore
 {
 	private final static boolean DEBUG = false;
 
-	private RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private final AtomicLong mLength;
+	private final boolean mDirectIO;
+	private final int mBlockSize;
+	private final ThreadLocal<ByteBuffer> mDirectBuffers;
 	private int mPageSize;
-	private long mPagesPerVolume;
 	private boolean mReadOnly;
 	private final File mFile;
 
@@ -37,12 +55,63 @@ public class FilePageStore implements PageStore
 	 *   the size of a page.
 	 */
 	public FilePageStore(File aFile, boolean aReadOnly, int aPageSize) throws IOException
+	{
+		this(aFile, aReadOnly, aPageSize, false);
+	}
+
+
+	/**
+	 * Opens an existing PageStore file or creates a new PageStore file.
+	 *
+	 * @param aFile
+	 *   the destination file.
+	 * @param aReadOnly
+	 *   true if reading only from file.
+	 * @param aPageSize
+	 *   the size of a page.
+	 * @param aDirectIO
+	 *   true if the file is opened for direct I/O bypassing the page cache of
+	 *   the operating system.
+	 */
+	public FilePageStore(File aFile, boolean aReadOnly, int aPageSize, boolean aDirectIO) throws IOException
 	{
 		mFile = aFile;
 		mReadOnly = aReadOnly;
 		mPageSize = aPageSize;
+		mDirectIO = aDirectIO;
+
+		ArrayList<OpenOption> options = new ArrayList<>();
+		options.add(StandardOpenOption.READ);
+		if (!mReadOnly)
+		{
+			options.add(StandardOpenOption.WRITE);
+			options.add(StandardOpenOption.CREATE);
+		}
+
+		if (mDirectIO)
+		{
+			if (!mReadOnly && !mFile.exists())
+			{
+				mFile.createNewFile();
+			}
 
-		mRandomAccessFile = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
+			mBlockSize = (int)Files.getFileStore(mFile.toPath()).getBlockSize();
+			mDirectBuffers = new ThreadLocal<>();
+
+			checkPageSize(aPageSize);
+
+			options.add(ExtendedOpenOption.DIRECT);
+		}
+		else
+		{
+			mBlockSize = 1;
+			mDirectBuffers = null;
+		}
+
+		mChannel = FileChannel.open(mFile.toPath(), options.toArray(new OpenOption[options.size()]));
+
+		// the length is tracked in memory instead of calling File.length on every read
+		mLength = new AtomicLong(mChannel.size());
 	}
 
 
@@ -62,7 +131,8 @@ public class FilePageStore implements PageStore
 
 
 	/**
-	 * Reads one or more pages from the PageStore.
+	 * Reads one or more pages from the PageStore. Pages beyond the end of the
+	 * file are read as zeros.
 	 *
 	 * @param aPageIndex
 	 *   the first page to read.
@@ -86,16 +156,35 @@ public class FilePageStore implements PageStore
 		{
 			throw new IOException("Input buffer has illegal size: " + aLength);
 		}
-		if (aPageIndex > getPageCount())
+		long pageCount = getPageCount();
+		if (aPageIndex > pageCount)
 		{
-			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " +  getPageCount());
+			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " + pageCount);
 		}
 
-		synchronized (this)
+		ByteBuffer buffer = mDirectIO ? getDirectBuffer(aLength) : ByteBuffer.wrap(aBuffer, aOffset, aLength);
+		int length = 0;
+
+		for (long position = aPageIndex * mPageSize; buffer.hasRemaining(); )
+		{
+			int n = mChannel.read(buffer, position);
+
+			if (n < 0)
+			{
+				break;
+			}
+
+			position += n;
+			length += n;
+		}
+
+		if (mDirectIO)
 		{
-			mRandomAccessFile.seek(aPageIndex * mPageSize);
-			mRandomAccessFile.read(aBuffer, aOffset, aLength);
+			buffer.flip();
+			buffer.get(aBuffer, aOffset, length);
 		}
+
+		Arrays.fill(aBuffer, aOffset + length, aOffset + aLength, (byte)0);
 	}
 
 
@@ -144,11 +233,89 @@ public class FilePageStore implements PageStore
 			throw new IllegalArgumentException("Index out of bounds: buffer offset: "+aOffset+", buffer length: "+aBuffer.length+", write: "+aLength);
 		}
 
-		synchronized (this)
+		ByteBuffer buffer;
+		if (mDirectIO)
+		{
+			buffer = getDirectBuffer(aLength);
+			buffer.put(aBuffer, aOffset, aLength).flip();
+		}
+		else
+		{
+			buffer = ByteBuffer.wrap(aBuffer, aOffset, aLength);
+		}
+
+		for (long position = aPageIndex * mPageSize; buffer.hasRemaining(); )
+		{
+			position += mChannel.write(buffer, position);
+		}
+
+		mLength.accumulateAndGet(aPageIndex * mPageSize + aLength, Math::max);
+	}
+
+
+	/**
+	 * Writes consecutive pages to the PageStore with a gathering write.
+	 *
+	 * @param aPageIndex
+	 *   the start page index.
+	 * @param aBuffers
+	 *   the content to be written. Length of each buffer must be the page
+	 *   size.
+	 */
+	@Override
+	public void write(long aPageIndex, byte [][] aBuffers) throws IOException
+	{
+		if (DEBUG) System.out.println("write(page="+aPageIndex+", buffers="+aBuffers.length+")");
+
+		if (aPageIndex < 0)
 		{
-			mRandomAccessFile.seek(aPageIndex * mPageSize);
-			mRandomAccessFile.write(aBuffer, aOffset, aLength);
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+
+		for (byte [] buffer : aBuffers)
+		{
+			if (buffer.length != mPageSize)
+			{
+				throw new IOException("Input buffer has illegal size: " + buffer.length+", page-size: "+mPageSize);
+			}
+		}
+
+		if (mDirectIO)
+		{
+			// direct I/O needs an aligned buffer, the pages are copied into one buffer and written together
+			ByteBuffer buffer = getDirectBuffer(aBuffers.length * mPageSize);
+			for (byte [] page : aBuffers)
+			{
+				buffer.put(page);
+			}
+			buffer.flip();
+
+			for (long position = aPageIndex * mPageSize; buffer.hasRemaining(); )
+			{
+				position += mChannel.write(buffer, position);
+			}
+		}
+		else
+		{
+			ByteBuffer [] buffers = new ByteBuffer[aBuffers.length];
+			for (int i = 0; i < buffers.length; i++)
+			{
+				buffers[i] = ByteBuffer.wrap(aBuffers[i]);
+			}
+
+			// gathering writes use the position of the channel
+			synchronized (this)
+			{
+				mChannel.position(aPageIndex * mPageSize);
+
+				while (buffers[buffers.length - 1].hasRemaining())
+				{
+					mChannel.write(buffers);
+				}
+			}
 		}
+
+		mLength.accumulateAndGet((aPageIndex + aBuffers.length) * mPageSize, Math::max);
 	}
 
 
@@ -161,7 +328,7 @@ public class FilePageStore implements PageStore
 	@Override
 	public long getPageCount() throws IOException
 	{
-		return mFile.length() / mPageSize;
+		return mLength.get() / mPageSize;
 	}
 
 
@@ -187,10 +354,41 @@ public class FilePageStore implements PageStore
 	@Override
 	public void setPageSize(int aPageSize)
 	{
+		checkPageSize(aPageSize);
+
 		mPageSize = aPageSize;
 	}
 
 
+	private void checkPageSize(int aPageSize)
+	{
+		if (aPageSize % mBlockSize != 0)
+		{
+			throw new IllegalArgumentException("Page size must be a multiple of the block size when using direct I/O: page size: " + aPageSize + ", block size: " + mBlockSize);
+		}
+	}
+
+
+	/**
+	 * Returns the direct buffer of the calling thread, aligned to the block
+	 * size, with the limit set to the length requested.
+	 */
+	private ByteBuffer getDirectBuffer(int aLength)
+	{
+		ByteBuffer buffer = mDirectBuffers.get();
+
+		if (buffer == null || buffer.capacity() < aLength)
+		{
+			buffer = ByteBuffer.allocateDirect(aLength + mBlockSize - 1).alignedSlice(mBlockSize);
+			mDirectBuffers.set(buffer);
+		}
+
+		buffer.clear().limit(aLength);
+
+		return buffer;
+	}
+
+
 	/**
 	 * Close the PageStore and clears all internal data. A PageStore must be
 	 * explicitly closed.
@@ -198,24 +396,40 @@ public class FilePageStore implements PageStore
 	@Override
 	public void close() throws IOException
 	{
+		mChannel.close();
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+		mChannel.force(true);
+	}
+
+
+	@Override
+	public void truncate(long aPageCount) throws IOException
+	{
+		if (aPageCount < 0)
+		{
+			throw new IllegalArgumentException("Negative page count: " + aPageCount);
+		}
+
 		synchronized (this)
 		{
-			if (mRandomAccessFile != null)
+			if (aPageCount < getPageCount())
 			{
-				mRandomAccessFile.close();
-				mRandomAccessFile = null;
+				mChannel.truncate(aPageCount * mPageSize);
+				mLength.set(aPageCount * mPageSize);
 			}
 		}
 	}
 
 
 	@Override
-	public void flush() throws IOException
+	public boolean isTruncateSupported()
 	{
-		synchronized (this)
-		{
-			mRandomAccessFile.getChannel().force(true);
-		}
+		return true;
 	}
 
 
@@ -223,4 +437,10 @@ public class FilePageStore implements PageStore
 	{
 		return mReadOnly;
 	}
+
+
+	public boolean isDirectIO()
+	{
+		return mDirectIO;
+	}
 }
\ No newline at end of file
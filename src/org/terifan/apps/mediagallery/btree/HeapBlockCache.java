@@ -0,0 +1,65 @@
+package org.terifan.apps.mediagallery.btree;
+
+
+/**
+ * A BlockCache keeping page content in byte arrays on the heap.
+ */
+class HeapBlockCache implements BlockCache
+{
+	private Cache<Long,byte[]> mCache;
+
+
+	public HeapBlockCache(long aCapacity)
+	{
+		mCache = new Cache<>(aCapacity, new TwoQueueEvictionPolicy<>());
+	}
+
+
+	@Override
+	public byte [] get(long aPageIndex, boolean aLowPriority)
+	{
+		return mCache.get(aPageIndex, aLowPriority);
+	}
+
+
+	@Override
+	public void put(long aPageIndex, byte [] aBuffer, boolean aLowPriority)
+	{
+		mCache.put(aPageIndex, aBuffer, aBuffer.length, aLowPriority);
+	}
+
+
+	@Override
+	public void remove(long aPageIndex)
+	{
+		mCache.remove(aPageIndex);
+	}
+
+
+	@Override
+	public void clear()
+	{
+		mCache.clearQuiet();
+	}
+
+
+	@Override
+	public void setCapacity(long aCapacity)
+	{
+		mCache.setCapacity(aCapacity);
+	}
+
+
+	@Override
+	public long getCapacity()
+	{
+		return mCache.getCapacity();
+	}
+
+
+	@Override
+	public int size()
+	{
+		return mCache.size();
+	}
+}
@@ -6,7 +6,7 @@ import java.util.Arrays;
 
 class IndexElement
 {
-	final static int HEADER_SIZE = 1 + 5;
+	final static int HEADER_SIZE = Page.SLOT_SIZE + 1 + 5;
 
 	byte [] mKey;
 	long mPageIndex;
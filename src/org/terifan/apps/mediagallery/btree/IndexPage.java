@@ -47,77 +47,25 @@ class IndexPage extends Page
 	@Override
 	public void put(DataElement aDataElement) throws IOException, TreeIntegrityException
 	{
-		if (mElements.isEmpty() || BTree.compare(aDataElement.getKey(), mElements.get(0).mKey) == -1)
-		{
-			mTree.loadPage(this, mFirstPageIndex).put(aDataElement);
-			write();
-			return;
-		}
-
-		for (int i = mElements.size(); --i >= 0;)
-		{
-			IndexElement element = mElements.get(i);
-			if (BTree.compare(aDataElement.getKey(), element.mKey) >= 0)
-			{
-				mTree.loadPage(this, element.mPageIndex).put(aDataElement);
-				write();
-				return;
-			}
-		}
-
-		throw new IllegalStateException();
+		mTree.loadPage(this, findChildPageIndex(aDataElement.getKey())).put(aDataElement);
 	}
 
 
 	@Override
 	public boolean get(DataElement aDataElement) throws IOException, TreeIntegrityException
 	{
-		if (mElements.isEmpty() || BTree.compare(aDataElement.getKey(), mElements.get(0).mKey) == -1)
-		{
-			return mTree.loadPage(this, mFirstPageIndex).get(aDataElement);
-		}
-
-		for (int i = mElements.size(); --i >= 0;)
-		{
-			IndexElement element = mElements.get(i);
-			if (BTree.compare(aDataElement.getKey(), element.mKey) >= 0)
-			{
-				return mTree.loadPage(this, element.mPageIndex).get(aDataElement);
-			}
-		}
-
-		return false;
+		return mTree.loadPage(this, findChildPageIndex(aDataElement.getKey())).get(aDataElement);
 	}
 
 
 	@Override
 	public int remove(IndexPage aParent, DataElement aDataElement) throws IOException, TreeIntegrityException
 	{
-		int state = -1;
-		int index = -1;
-
-		Page childPage = null;
+		int index = findElement(aDataElement.getKey());
 
-		if (mElements.isEmpty() || BTree.compare(aDataElement.getKey(), mElements.get(0).mKey) == -1)
-		{
-			childPage = mTree.loadPage(this, mFirstPageIndex);
-			state = childPage.remove(this, aDataElement);
-		}
+		Page childPage = mTree.loadPage(this, index == -1 ? mFirstPageIndex : mElements.get(index).mPageIndex);
 
-		if (state == -1)
-		{
-			for (int i = mElements.size(); --i >= 0;)
-			{
-				IndexElement element = mElements.get(i);
-				if (BTree.compare(aDataElement.getKey(), element.mKey) >= 0)
-				{
-					childPage = mTree.loadPage(this, element.mPageIndex);
-					state = childPage.remove(this, aDataElement);
-					index = i;
-					break;
-				}
-			}
-		}
+		int state = childPage.remove(this, aDataElement);
 
 if(BTree.DEBUG)
 {
@@ -134,13 +82,13 @@ if(BTree.DEBUG)
 
 		if (state == 2)
 		{
-			if (mPageIndex == 0 && mElements.isEmpty())
+			if (mPageIndex == mTree.getRootPageIndex() && mElements.isEmpty())
 			{
 				return 1;
 			}
 
 			childPage.mTerminated = true;
-			childPage.write();
+			childPage.markDirty();
 
 			if (index == -1)
 			{
@@ -150,15 +98,15 @@ if(BTree.DEBUG)
 			{
 				mElements.remove(index);
 			}
-			write();
+			markDirty();
 		}
 
-		if (getUsedSpace() > mTree.getPageSize()/2 || mPageIndex == 0 && mElements.size() > 0) // not underflow
+		if (getUsedSpace() > mTree.getPageSize()/2 || mPageIndex == mTree.getRootPageIndex() && mElements.size() > 0) // not underflow
 		{
 			return 1;
 		}
 
-		if (mPageIndex == 0) // collapse root (root has only one child)
+		if (mPageIndex == mTree.getRootPageIndex()) // collapse root (root has only one child)
 		{
 			Page n = mTree.loadPage(this, mFirstPageIndex);
 
@@ -174,9 +122,9 @@ if(BTree.DEBUG)
 				}
 
 				page.mTerminated = true;
-				page.write();
+				page.markDirty();
 
-				write();
+				markDirty();
 			}
 
 			return 1;
@@ -270,7 +218,10 @@ if(BTree.DEBUG)
 	throw new IllegalStateException("debug"+mPageIndex+", "+neighborPage.getUsedSpace());
 }
 
-		if (neighborPage.mElements.size() > 1 && neighborPage.getUsedSpace() > mTree.getPageSize()/2) // shift elements from neighbor
+		// a merge pulls down the smallest key of the right page as a separator
+		int mergedSize = size + neighborPage.getUsedSpace() - HEADER_SIZE + IndexElement.HEADER_SIZE + findSmallestKey(leftSideNeighbor ? this : neighborPage).length;
+
+		if (neighborPage.mElements.size() > 1 && (neighborPage.getUsedSpace() > mTree.getPageSize()/2 || mergedSize > mTree.getPageSize())) // shift elements from neighbor
 		{
 			if (leftSideNeighbor)
 			{
@@ -299,7 +250,7 @@ if(BTree.DEBUG)
 
 				mFirstPageIndex = neighborPage.mElements.remove(middle).mPageIndex;
 
-				write();
+				markDirty();
 
 				for (int i = neighborPage.mElements.size(); --i >= middle;)
 				{
@@ -309,7 +260,7 @@ if(BTree.DEBUG)
 					}
 				}
 
-				neighborPage.write();
+				neighborPage.markDirty();
 
 				key = findSmallestKey(this);
 
@@ -319,7 +270,7 @@ if(BTree.DEBUG)
 					throw new IllegalStateException();
 				}
 				aParent.mElements.remove(i);
-				aParent.write();
+				aParent.markDirty();
 				aParent.insertElement(new IndexElement(key, mPageIndex));
 
 /*				boolean b = true;
@@ -329,7 +280,7 @@ if(BTree.DEBUG)
 					{
 						b = false;
 						aParent.mElements.remove(i);
-						aParent.write();
+						aParent.markDirty();
 						break;
 					}
 				}
@@ -361,8 +312,8 @@ if(BTree.DEBUG)
 
 				neighborPage.mFirstPageIndex = neighborPage.mElements.remove(middle).mPageIndex;
 
-				neighborPage.write();
-				write();
+				neighborPage.markDirty();
+				markDirty();
 
 				for (int i = middle; --i >= 0;)
 				{
@@ -372,8 +323,8 @@ if(BTree.DEBUG)
 					}
 				}
 
-				neighborPage.write();
-				write();
+				neighborPage.markDirty();
+				markDirty();
 
 				key = findSmallestKey(neighborPage);
 
@@ -384,7 +335,7 @@ if(BTree.DEBUG)
 				}
 
 				aParent.mElements.remove(i);
-				aParent.write();
+				aParent.markDirty();
 				aParent.insertElement(new IndexElement(key, neighborPage.mPageIndex));
 
 /*				boolean b = true;
@@ -394,7 +345,7 @@ if(BTree.DEBUG)
 					{
 						b = false;
 						aParent.mElements.remove(i);
-						aParent.write();
+						aParent.markDirty();
 						break;
 					}
 				}
@@ -416,7 +367,7 @@ if(BTree.DEBUG)
 			{
 				aParent.mElements.remove(neighborIndexInParent+1);
 			}
-			aParent.write();
+			aParent.markDirty();
 
 			byte [] key = findSmallestKey(this);
 
@@ -434,7 +385,7 @@ if(BTree.DEBUG)
 			}
 
 			mTerminated = true;
-			write();
+			markDirty();
 		}
 		else
 		{
@@ -446,7 +397,7 @@ if(BTree.DEBUG)
 			{
 				aParent.mElements.remove(neighborIndexInParent);
 			}
-			aParent.write();
+			aParent.markDirty();
 
 			byte [] key = findSmallestKey(neighborPage);
 
@@ -464,7 +415,7 @@ if(BTree.DEBUG)
 			}
 
 			neighborPage.mTerminated = true;
-			neighborPage.write();
+			neighborPage.markDirty();
 		}
 
 		return 3;
@@ -478,22 +429,7 @@ if(BTree.DEBUG)
 	{
 		if (getUsedSpace() + aIndexElement.size() > mTree.getPageSize())
 		{
-			if (BTree.compare(mElements.get(0).mKey, aIndexElement.mKey) == 1)
-			{
-				mElements.add(0, aIndexElement);
-			}
-			else
-			{
-				for (int i = mElements.size(); --i >= 0;)
-				{
-					IndexElement element = mElements.get(i);
-					if (BTree.compare(element.mKey,  aIndexElement.mKey) <= 0)
-					{
-						mElements.add(i+1, aIndexElement);
-						break;
-					}
-				}
-			}
+			mElements.add(findElement(aIndexElement.mKey) + 1, aIndexElement);
 
 			int middle = 0;
 
@@ -516,7 +452,7 @@ if (middle == 0)
 	throw new IllegalStateException("middle == 0");
 }
 
-			if (getPageIndex() == 0) // split root page
+			if (getPageIndex() == mTree.getRootPageIndex()) // split root page
 			{
 				IndexPage leftPage = new IndexPage(mTree, this);
 				IndexPage rightPage = new IndexPage(mTree, this);
@@ -569,7 +505,7 @@ if (middle == 0)
 
 				mElements.remove(middle);
 
-				write();
+				markDirty();
 
 				mParent.insertElement(new IndexElement(middleKey, newPage.getPageIndex()));
 
@@ -577,32 +513,10 @@ if (middle == 0)
 			}
 		}
 
-		if (mElements.size() == 0)
-		{
-			mElements.add(aIndexElement);
-			write();
-			return false;
-		}
-
-		if (BTree.compare(mElements.get(0).mKey, aIndexElement.mKey) == 1)
-		{
-			mElements.add(0, aIndexElement);
-			write();
-			return false;
-		}
-
-		for (int i = mElements.size(); --i >= 0;)
-		{
-			IndexElement element = mElements.get(i);
-			if (BTree.compare(element.mKey, aIndexElement.mKey) <= 0)
-			{
-				mElements.add(i+1, aIndexElement);
-				write();
-				return false;
-			}
-		}
+		mElements.add(findElement(aIndexElement.mKey) + 1, aIndexElement);
+		markDirty();
 
-		throw new IllegalStateException(""+aIndexElement);
+		return false;
 	}
 
 
@@ -619,20 +533,42 @@ if (middle == 0)
 		if (mTerminated)
 		{
 			buffer.put('X');
+			buffer.putNumber(mTree.freePage(mPageIndex), 5);
 		}
 		else
 		{
-			buffer.put('I');
+			// a page read in the legacy format may not fit the slotted format
+			// until it has been split or elements have been removed
+			boolean slotted = getUsedSpace() <= mTree.getPageSize();
+
+			buffer.put(slotted ? 'i' : 'I');
 			buffer.putShort(mElements.size());
 			buffer.putNumber(mFirstPageIndex, 5);
 
-			for (int i = 0; i < mElements.size(); i++)
+			if (slotted)
 			{
-				mElements.get(i).write(buffer);
+				for (int i = 0, offset = buffer.capacity(); i < mElements.size(); i++)
+				{
+					IndexElement element = mElements.get(i);
+					offset -= element.size() - SLOT_SIZE;
+
+					buffer.putShort(HEADER_SIZE + i * SLOT_SIZE, offset);
+					buffer.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, keyHead(element.mKey));
+					buffer.position(offset);
+					element.write(buffer);
+				}
+			}
+			else
+			{
+				for (int i = 0; i < mElements.size(); i++)
+				{
+					mElements.get(i).write(buffer);
+				}
 			}
 		}
 
 		mTree.getTransactionLog().write(mPageIndex, buffer.array());
+		mTree.pageWritten(this);
 	}
 
 
@@ -643,7 +579,9 @@ if (middle == 0)
 
 		mTree.getTransactionLog().read(mPageIndex, buffer.array());
 
-		if (buffer.getUnsignedByte() != 'I')
+		int type = buffer.getUnsignedByte();
+
+		if (type != 'i' && type != 'I')
 		{
 			throw new IOException("Not an index page: page index: " + mPageIndex);
 		}
@@ -652,15 +590,27 @@ if (middle == 0)
 	}
 
 
+	/**
+	 * Decodes the elements of a page. Slotted pages, type 'i', store a slot
+	 * directory after the header and the elements from the end of the page.
+	 * Legacy pages, type 'I', store the elements in sequence after the header.
+	 */
 	private void parseElements(ByteBuffer aBuffer) throws IOException, TreeIntegrityException
 	{
 		mElements.clear();
 
+		boolean slotted = aBuffer.getUnsignedByte(0) == 'i';
+
 		int l = aBuffer.getUnsignedShort();
 		mFirstPageIndex = aBuffer.getNumber(5);
 
 		for (int i = 0; i < l; i++)
 		{
+			if (slotted)
+			{
+				aBuffer.position(aBuffer.getUnsignedShort(HEADER_SIZE + i * SLOT_SIZE));
+			}
+
 			IndexElement element = new IndexElement();
 			element.read(aBuffer);
 			mElements.add(element);
@@ -680,6 +630,21 @@ if (middle == 0)
 	}
 
 
+	int getChildCount()
+	{
+		return mElements.size() + 1;
+	}
+
+
+	/**
+	 * Returns the page index of a child, zero being the first page.
+	 */
+	long getChildPageIndex(int aChild)
+	{
+		return aChild == 0 ? mFirstPageIndex : mElements.get(aChild - 1).mPageIndex;
+	}
+
+
 	void setFirstPageIndex(long aFirstPageIndex)
 	{
 		mFirstPageIndex = aFirstPageIndex;
@@ -697,23 +662,42 @@ if (middle == 0)
 	}
 
 
-	long findChildPageIndex(byte [] aKey) throws IOException
+	long findChildPageIndex(byte [] aKey)
 	{
-		if (mElements.size() == 0 || BTree.compare(aKey, mElements.get(0).mKey) == -1)
-		{
-			return mFirstPageIndex;
-		}
+		int index = findElement(aKey);
 
-		for (int i = mElements.size(); --i >= 0;)
+		return index == -1 ? mFirstPageIndex : mElements.get(index).mPageIndex;
+	}
+
+
+	/**
+	 * Binary search for the last element with a key less than or equal to the
+	 * key provided.
+	 *
+	 * @return
+	 *   the index of the element or -1 if the key is less than all elements,
+	 *   in which case the key belongs to the first child page.
+	 */
+	int findElement(byte [] aKey)
+	{
+		int low = 0;
+		int high = mElements.size() - 1;
+
+		while (low <= high)
 		{
-			IndexElement element = mElements.get(i);
-			if (BTree.compare(aKey, element.mKey) >= 0)
+			int mid = (low + high) >>> 1;
+
+			if (BTree.compare(mElements.get(mid).mKey, aKey) <= 0)
+			{
+				low = mid + 1;
+			}
+			else
 			{
-				return element.mPageIndex;
+				high = mid - 1;
 			}
 		}
 
-		throw new IOException("error");
+		return low - 1;
 	}
 
 
@@ -731,6 +715,31 @@ if (middle == 0)
 	}
 
 
+	/**
+	 * Replaces the index of a child page that has been moved.
+	 */
+	void relocateChild(long aOldPageIndex, long aNewPageIndex) throws IOException, TreeIntegrityException
+	{
+		int index = indexOf(aOldPageIndex);
+
+		if (index == -1)
+		{
+			throw new TreeIntegrityException("Page is not a child: page index: " + aOldPageIndex + ", parent page index: " + mPageIndex);
+		}
+
+		if (index == FIRST_CHILD)
+		{
+			mFirstPageIndex = aNewPageIndex;
+		}
+		else
+		{
+			mElements.get(index).mPageIndex = aNewPageIndex;
+		}
+
+		markDirty();
+	}
+
+
 	private int indexOf(long aPageIndex)
 	{
 		if (mFirstPageIndex == aPageIndex)
@@ -0,0 +1,103 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.terifan.apps.mediagallery.btree.Cache.Entry;
+import org.terifan.apps.mediagallery.btree.Cache.EntryList;
+
+
+/**
+ * Removes the least recently used entry first. Entries inserted with low
+ * priority are placed last and low priority reads don't reorder entries.
+ */
+class LRUEvictionPolicy<K,V> implements EvictionPolicy<K,V>
+{
+	private EntryList<K,V> mList;
+
+
+	public LRUEvictionPolicy()
+	{
+		mList = new EntryList<>();
+	}
+
+
+	@Override
+	public void inserted(Entry<K,V> aEntry, boolean aLowPriority)
+	{
+		if (aLowPriority)
+		{
+			mList.linkLast(aEntry);
+		}
+		else
+		{
+			mList.linkFirst(aEntry);
+		}
+	}
+
+
+	@Override
+	public void accessed(Entry<K,V> aEntry, boolean aLowPriority)
+	{
+		if (!aLowPriority)
+		{
+			mList.moveFirst(aEntry);
+		}
+	}
+
+
+	@Override
+	public void updated(Entry<K,V> aEntry, long aPreviousSize, boolean aLowPriority)
+	{
+		accessed(aEntry, aLowPriority);
+	}
+
+
+	@Override
+	public void removed(Entry<K,V> aEntry, boolean aEvicted)
+	{
+		mList.unlink(aEntry);
+	}
+
+
+	@Override
+	public Entry<K,V> victim(long aCapacity)
+	{
+		return mList.tail;
+	}
+
+
+	@Override
+	public Iterator<Entry<K,V>> iterator()
+	{
+		return new Iterator<Entry<K,V>>()
+		{
+			Entry<K,V> mNext = mList.head;
+
+			@Override
+			public boolean hasNext()
+			{
+				return mNext != null;
+			}
+
+
+			@Override
+			public Entry<K,V> next()
+			{
+				if (mNext == null)
+				{
+					throw new NoSuchElementException();
+				}
+				Entry<K,V> entry = mNext;
+				mNext = entry.next;
+				return entry;
+			}
+		};
+	}
+
+
+	@Override
+	public void clear()
+	{
+		mList.clear();
+	}
+}
@@ -0,0 +1,289 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * A MappedPageStore is a random access storage of pages, stored in a native
+ * file accessed through memory mappings. Pages are copied from the mappings
+ * without a system call, leaving caching to the operating system.<p>
+ *
+ * The file is mapped in segments of at most 1 GB holding a whole number of
+ * pages, allowing files larger than 2 GB. Pages appended to the file are
+ * written through the channel and the last segment is remapped when read
+ * after the file has grown.<p>
+ *
+ * Truncation isn't supported since a file can't be shrunk while mapped on
+ * all platforms (Windows refuses it) and mappings are only released by the
+ * garbage collector. Trees stored in a MappedPageStore are therefore not
+ * compacted by BTree.vacuum.<p>
+ *
+ * Implementation note: mappings are released by the garbage collector after
+ * the store is closed.
+ */
+public class MappedPageStore implements PageStore
+{
+	private final static int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private final File mFile;
+	private final boolean mReadOnly;
+	private FileChannel mChannel;
+	private int mPageSize;
+	private int mPagesPerSegment;
+	private volatile long mPageCount;
+	private volatile MappedByteBuffer [] mSegments;
+
+
+	/**
+	 * Opens an existing PageStore file or creates a new PageStore file.
+	 *
+	 * @param aFile
+	 *   the destination file.
+	 * @param aReadOnly
+	 *   true if reading only from file.
+	 * @param aPageSize
+	 *   the size of a page.
+	 */
+	public MappedPageStore(File aFile, boolean aReadOnly, int aPageSize) throws IOException
+	{
+		mFile = aFile;
+		mReadOnly = aReadOnly;
+
+		if (mReadOnly)
+		{
+			mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+		}
+		else
+		{
+			mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		}
+
+		setPageSize(aPageSize);
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Reads one or more pages from the PageStore. Pages beyond the end of the
+	 * file are read as zeros.
+	 */
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength);
+		}
+		if (aPageIndex > mPageCount)
+		{
+			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " + mPageCount);
+		}
+
+		for (long pageIndex = aPageIndex; aLength > 0; )
+		{
+			if (pageIndex >= mPageCount)
+			{
+				Arrays.fill(aBuffer, aOffset, aOffset + aLength, (byte)0);
+				break;
+			}
+
+			int segmentIndex = (int)(pageIndex / mPagesPerSegment);
+			int pageInSegment = (int)(pageIndex % mPagesPerSegment);
+			int pages = (int)Math.min(Math.min(aLength / mPageSize, mPagesPerSegment - pageInSegment), mPageCount - pageIndex);
+			int length = pages * mPageSize;
+
+			getSegment(segmentIndex, pageInSegment + pages).get(pageInSegment * mPageSize, aBuffer, aOffset, length);
+
+			pageIndex += pages;
+			aOffset += length;
+			aLength -= length;
+		}
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Writes one or more pages to the PageStore. Pages inside the mapped part
+	 * of the file are written to the mapping, pages extending the file are
+	 * written through the channel.
+	 */
+	@Override
+	public synchronized void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength+", page-size: "+mPageSize);
+		}
+		if (aLength < 0 || aOffset+aLength > aBuffer.length)
+		{
+			throw new IllegalArgumentException("Index out of bounds: buffer offset: "+aOffset+", buffer length: "+aBuffer.length+", write: "+aLength);
+		}
+		if (mReadOnly)
+		{
+			throw new IOException("PageStore is read only.");
+		}
+
+		for (long pageIndex = aPageIndex; aLength > 0; )
+		{
+			int segmentIndex = (int)(pageIndex / mPagesPerSegment);
+			int pageInSegment = (int)(pageIndex % mPagesPerSegment);
+			int pages = Math.min(aLength / mPageSize, mPagesPerSegment - pageInSegment);
+			int length = pages * mPageSize;
+
+			if (pageIndex + pages <= mPageCount)
+			{
+				getSegment(segmentIndex, pageInSegment + pages).put(pageInSegment * mPageSize, aBuffer, aOffset, length);
+			}
+			else
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(aBuffer, aOffset, length);
+				for (long position = pageIndex * mPageSize; buffer.hasRemaining(); )
+				{
+					position += mChannel.write(buffer, position);
+				}
+				mPageCount = Math.max(mPageCount, pageIndex + pages);
+			}
+
+			pageIndex += pages;
+			aOffset += length;
+			aLength -= length;
+		}
+	}
+
+
+	/**
+	 * Returns the mapping of a segment, mapping or remapping it when the
+	 * current mapping doesn't cover the number of pages requested.
+	 */
+	private MappedByteBuffer getSegment(int aSegmentIndex, int aPageCount) throws IOException
+	{
+		MappedByteBuffer [] segments = mSegments;
+
+		if (aSegmentIndex < segments.length)
+		{
+			MappedByteBuffer segment = segments[aSegmentIndex];
+
+			if (segment != null && segment.capacity() >= aPageCount * mPageSize)
+			{
+				return segment;
+			}
+		}
+
+		return mapSegment(aSegmentIndex);
+	}
+
+
+	private synchronized MappedByteBuffer mapSegment(int aSegmentIndex) throws IOException
+	{
+		if (mChannel == null)
+		{
+			throw new IOException("PageStore is closed.");
+		}
+
+		long start = (long)aSegmentIndex * mPagesPerSegment * mPageSize;
+		long size = Math.min((long)mPagesPerSegment * mPageSize, mPageCount * mPageSize - start);
+
+		MappedByteBuffer segment = mChannel.map(mReadOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, start, size);
+
+		MappedByteBuffer [] segments = mSegments;
+		if (aSegmentIndex >= segments.length)
+		{
+			segments = Arrays.copyOf(segments, aSegmentIndex + 1);
+		}
+		else
+		{
+			segments = segments.clone();
+		}
+		segments[aSegmentIndex] = segment;
+		mSegments = segments;
+
+		return segment;
+	}
+
+
+	@Override
+	public long getPageCount() throws IOException
+	{
+		return mPageCount;
+	}
+
+
+	@Override
+	public int getPageSize()
+	{
+		return mPageSize;
+	}
+
+
+	/**
+	 * Sets the size of a page. All mappings are released.
+	 */
+	@Override
+	public synchronized void setPageSize(int aPageSize) throws IOException
+	{
+		mPageSize = aPageSize;
+		mPagesPerSegment = Math.max(1, MAX_SEGMENT_SIZE / aPageSize);
+		mPageCount = mChannel.size() / mPageSize;
+		mSegments = new MappedByteBuffer[0];
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (mChannel != null)
+		{
+			mChannel.close();
+			mChannel = null;
+			mSegments = new MappedByteBuffer[0];
+		}
+	}
+
+
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		for (MappedByteBuffer segment : mSegments)
+		{
+			if (segment != null)
+			{
+				segment.force();
+			}
+		}
+
+		mChannel.force(true);
+	}
+
+
+	public boolean isReadOnly()
+	{
+		return mReadOnly;
+	}
+}
@@ -0,0 +1,313 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * A MemoryPageStore is a random access storage of pages kept in memory, used
+ * for temporary trees. Pages are stored in chunks allocated either on the
+ * heap or in direct memory outside of the heap. The content can be saved to
+ * a file and loaded back.<p>
+ *
+ * Reads don't lock, writes are synchronized.
+ */
+public class MemoryPageStore implements PageStore
+{
+	private final static int CHUNK_SIZE = 1 << 20;
+
+	private final boolean mOffHeap;
+	private volatile ByteBuffer [] mChunks;
+	private volatile long mLength;
+	private int mPageSize;
+
+
+	/**
+	 * Creates an empty PageStore on the heap.
+	 *
+	 * @param aPageSize
+	 *   the size of a page.
+	 */
+	public MemoryPageStore(int aPageSize)
+	{
+		this(aPageSize, false);
+	}
+
+
+	/**
+	 * Creates an empty PageStore.
+	 *
+	 * @param aPageSize
+	 *   the size of a page.
+	 * @param aOffHeap
+	 *   true if pages are kept in direct memory. The maximum direct memory of
+	 *   the JVM (-XX:MaxDirectMemorySize) limits the size of the PageStore.
+	 */
+	public MemoryPageStore(int aPageSize, boolean aOffHeap)
+	{
+		mPageSize = aPageSize;
+		mOffHeap = aOffHeap;
+		mChunks = new ByteBuffer[0];
+	}
+
+
+	/**
+	 * Creates a PageStore with the content of a file.
+	 *
+	 * @param aFile
+	 *   a file created by the snapshot method or a FilePageStore.
+	 * @param aPageSize
+	 *   the size of a page.
+	 * @param aOffHeap
+	 *   true if pages are kept in direct memory.
+	 */
+	public static MemoryPageStore load(File aFile, int aPageSize, boolean aOffHeap) throws IOException
+	{
+		MemoryPageStore store = new MemoryPageStore(aPageSize, aOffHeap);
+
+		try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ))
+		{
+			long length = channel.size() / aPageSize * aPageSize;
+
+			store.ensureCapacity(length);
+
+			for (long position = 0; position < length; )
+			{
+				ByteBuffer chunk = store.mChunks[(int)(position / CHUNK_SIZE)].duplicate();
+				chunk.position((int)(position % CHUNK_SIZE)).limit((int)Math.min(CHUNK_SIZE, length - position / CHUNK_SIZE * CHUNK_SIZE));
+
+				while (chunk.hasRemaining())
+				{
+					int n = channel.read(chunk, position);
+					if (n < 0)
+					{
+						throw new IOException("Unexpected end of file: " + aFile);
+					}
+					position += n;
+				}
+			}
+
+			store.mLength = length;
+		}
+
+		return store;
+	}
+
+
+	/**
+	 * Writes the content of this PageStore to a file, replacing any existing
+	 * content.
+	 */
+	public synchronized void snapshot(File aFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			for (long position = 0; position < mLength; )
+			{
+				ByteBuffer chunk = mChunks[(int)(position / CHUNK_SIZE)].duplicate();
+				chunk.position((int)(position % CHUNK_SIZE)).limit((int)Math.min(CHUNK_SIZE, mLength - position / CHUNK_SIZE * CHUNK_SIZE));
+
+				while (chunk.hasRemaining())
+				{
+					position += channel.write(chunk, position);
+				}
+			}
+
+			channel.force(true);
+		}
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Reads one or more pages from the PageStore. Pages beyond the end of the
+	 * PageStore are read as zeros.
+	 */
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength);
+		}
+		if (aPageIndex > getPageCount())
+		{
+			throw new IOException("Reading beyond end of file: page index: "+aPageIndex+", page count: " + getPageCount());
+		}
+
+		ByteBuffer [] chunks = mChunks;
+		long position = aPageIndex * mPageSize;
+		int length = (int)Math.max(0, Math.min(aLength, Math.min(mLength, (long)chunks.length * CHUNK_SIZE) - position));
+
+		copy(chunks, position, aBuffer, aOffset, length, false);
+
+		Arrays.fill(aBuffer, aOffset + length, aOffset + aLength, (byte)0);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public synchronized void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength+", page-size: "+mPageSize);
+		}
+		if (aLength < 0 || aOffset+aLength > aBuffer.length)
+		{
+			throw new IllegalArgumentException("Index out of bounds: buffer offset: "+aOffset+", buffer length: "+aBuffer.length+", write: "+aLength);
+		}
+
+		long position = aPageIndex * mPageSize;
+
+		ensureCapacity(position + aLength);
+
+		copy(mChunks, position, aBuffer, aOffset, aLength, true);
+
+		mLength = Math.max(mLength, position + aLength);
+	}
+
+
+	private static void copy(ByteBuffer [] aChunks, long aPosition, byte [] aBuffer, int aOffset, int aLength, boolean aWrite)
+	{
+		while (aLength > 0)
+		{
+			ByteBuffer chunk = aChunks[(int)(aPosition / CHUNK_SIZE)];
+			int offset = (int)(aPosition % CHUNK_SIZE);
+			int length = Math.min(aLength, CHUNK_SIZE - offset);
+
+			if (aWrite)
+			{
+				chunk.put(offset, aBuffer, aOffset, length);
+			}
+			else
+			{
+				chunk.get(offset, aBuffer, aOffset, length);
+			}
+
+			aPosition += length;
+			aOffset += length;
+			aLength -= length;
+		}
+	}
+
+
+	private void ensureCapacity(long aLength)
+	{
+		int count = (int)((aLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+		if (count > mChunks.length)
+		{
+			ByteBuffer [] chunks = Arrays.copyOf(mChunks, count);
+			for (int i = mChunks.length; i < count; i++)
+			{
+				chunks[i] = mOffHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+			}
+			mChunks = chunks;
+		}
+	}
+
+
+	@Override
+	public long getPageCount()
+	{
+		return mLength / mPageSize;
+	}
+
+
+	@Override
+	public int getPageSize()
+	{
+		return mPageSize;
+	}
+
+
+	@Override
+	public synchronized void setPageSize(int aPageSize)
+	{
+		mPageSize = aPageSize;
+	}
+
+
+	@Override
+	public synchronized void truncate(long aPageCount)
+	{
+		if (aPageCount < 0)
+		{
+			throw new IllegalArgumentException("Negative page count: " + aPageCount);
+		}
+
+		long length = aPageCount * mPageSize;
+
+		if (length >= mLength)
+		{
+			return;
+		}
+
+		// clear the discarded part of the last chunk kept, pages appended later are read as zeros
+		int count = (int)((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		int offset = (int)(length % CHUNK_SIZE);
+		if (offset > 0)
+		{
+			ByteBuffer chunk = mChunks[count - 1];
+			chunk.put(offset, new byte[CHUNK_SIZE - offset]);
+		}
+
+		mLength = length;
+		mChunks = Arrays.copyOf(mChunks, count);
+	}
+
+
+	@Override
+	public boolean isTruncateSupported()
+	{
+		return true;
+	}
+
+
+	/**
+	 * Releases all pages.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		mChunks = new ByteBuffer[0];
+		mLength = 0;
+	}
+
+
+	@Override
+	public void flush()
+	{
+	}
+
+
+	public boolean isOffHeap()
+	{
+		return mOffHeap;
+	}
+}
@@ -0,0 +1,370 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * A MultiVolumePageStore spreads the pages of a PageStore over several
+ * volumes, each being a PageStore of its own such as a FilePageStore on a
+ * separate disk. Pages are either striped round-robin over the volumes or
+ * spanned, filling one volume after another:
+ *
+ * <pre>
+ * PageStore store = MultiVolumePageStore.createStriped(new PageStore[]
+ * {
+ *     new FilePageStore(new File("/disk1/tree.db"), false, 4096),
+ *     new FilePageStore(new File("/disk2/tree.db"), false, 4096)
+ * }, 16);
+ * </pre>
+ *
+ * All volumes must use the same page size. The volumes must be provided in
+ * the same order and with the same layout every time the PageStore is
+ * opened. Pages of a volume that haven't been written are read as zeros.
+ */
+public class MultiVolumePageStore implements PageStore
+{
+	private final static boolean DEBUG = false;
+
+	private final PageStore [] mVolumes;
+	private final boolean mStriped;
+	private final long mPagesPerUnit;
+
+
+	private MultiVolumePageStore(PageStore [] aVolumes, boolean aStriped, long aPagesPerUnit)
+	{
+		if (aVolumes.length == 0)
+		{
+			throw new IllegalArgumentException("No volumes provided.");
+		}
+		if (aPagesPerUnit < 1)
+		{
+			throw new IllegalArgumentException("Illegal number of pages: " + aPagesPerUnit);
+		}
+
+		mVolumes = aVolumes.clone();
+		mStriped = aStriped;
+		mPagesPerUnit = aPagesPerUnit;
+	}
+
+
+	/**
+	 * Creates a PageStore striping pages round-robin over the volumes.
+	 *
+	 * @param aVolumes
+	 *   the volumes of the PageStore.
+	 * @param aStripePages
+	 *   number of consecutive pages stored in a volume before moving on to
+	 *   the next volume.
+	 */
+	public static MultiVolumePageStore createStriped(PageStore [] aVolumes, int aStripePages)
+	{
+		return new MultiVolumePageStore(aVolumes, true, aStripePages);
+	}
+
+
+	/**
+	 * Creates a PageStore filling one volume after another. The last volume
+	 * holds all pages beyond the capacity of the other volumes.
+	 *
+	 * @param aVolumes
+	 *   the volumes of the PageStore.
+	 * @param aPagesPerVolume
+	 *   number of pages stored in each volume but the last.
+	 */
+	public static MultiVolumePageStore createSpanned(PageStore [] aVolumes, long aPagesPerVolume)
+	{
+		return new MultiVolumePageStore(aVolumes, false, aPagesPerVolume);
+	}
+
+
+	private int getVolume(long aPageIndex)
+	{
+		if (mStriped)
+		{
+			return (int)((aPageIndex / mPagesPerUnit) % mVolumes.length);
+		}
+
+		return (int)Math.min(aPageIndex / mPagesPerUnit, mVolumes.length - 1);
+	}
+
+
+	private long getVolumePageIndex(long aPageIndex)
+	{
+		if (mStriped)
+		{
+			return aPageIndex / mPagesPerUnit / mVolumes.length * mPagesPerUnit + aPageIndex % mPagesPerUnit;
+		}
+
+		return aPageIndex - getVolume(aPageIndex) * mPagesPerUnit;
+	}
+
+
+	/**
+	 * Returns the number of pages from the index provided that are stored
+	 * consecutively in the same volume.
+	 */
+	private long getContiguousPages(long aPageIndex)
+	{
+		if (!mStriped && getVolume(aPageIndex) == mVolumes.length - 1)
+		{
+			return Long.MAX_VALUE;
+		}
+
+		return mPagesPerUnit - aPageIndex % mPagesPerUnit;
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (DEBUG) System.out.println("read(page="+aPageIndex+", buffer="+aBuffer+", offset="+aOffset+", length="+aLength+")");
+
+		int pageSize = getPageSize();
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % pageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength);
+		}
+
+		for (long pageIndex = aPageIndex; aLength > 0; )
+		{
+			PageStore volume = mVolumes[getVolume(pageIndex)];
+			long volumePageIndex = getVolumePageIndex(pageIndex);
+			int pages = (int)Math.min(aLength / pageSize, getContiguousPages(pageIndex));
+			int length = pages * pageSize;
+
+			// pages beyond the end of a volume haven't been written
+			long volumePageCount = volume.getPageCount();
+			int readLength = (int)Math.max(0, Math.min(length, (volumePageCount - volumePageIndex) * pageSize));
+
+			if (readLength > 0)
+			{
+				volume.read(volumePageIndex, aBuffer, aOffset, readLength);
+			}
+			Arrays.fill(aBuffer, aOffset + readLength, aOffset + length, (byte)0);
+
+			pageIndex += pages;
+			aOffset += length;
+			aLength -= length;
+		}
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (DEBUG) System.out.println("write(page="+aPageIndex+", buffer="+aBuffer+", offset="+aOffset+", length="+aLength+")");
+
+		int pageSize = getPageSize();
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: "+aPageIndex);
+		}
+		if (aLength % pageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength+", page-size: "+pageSize);
+		}
+
+		for (long pageIndex = aPageIndex; aLength > 0; )
+		{
+			int pages = (int)Math.min(aLength / pageSize, getContiguousPages(pageIndex));
+			int length = pages * pageSize;
+
+			mVolumes[getVolume(pageIndex)].write(getVolumePageIndex(pageIndex), aBuffer, aOffset, length);
+
+			pageIndex += pages;
+			aOffset += length;
+			aLength -= length;
+		}
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte [][] aBuffers) throws IOException
+	{
+		for (int i = 0; i < aBuffers.length; )
+		{
+			long pageIndex = aPageIndex + i;
+			int pages = (int)Math.min(aBuffers.length - i, getContiguousPages(pageIndex));
+
+			mVolumes[getVolume(pageIndex)].write(getVolumePageIndex(pageIndex), Arrays.copyOfRange(aBuffers, i, i + pages));
+
+			i += pages;
+		}
+	}
+
+
+	/**
+	 * Returns number of pages in this PageStore, being the index of the last
+	 * page written in any volume plus one.
+	 */
+	@Override
+	public long getPageCount() throws IOException
+	{
+		long pageCount = 0;
+
+		for (int i = 0; i < mVolumes.length; i++)
+		{
+			long volumePageCount = mVolumes[i].getPageCount();
+
+			if (volumePageCount > 0)
+			{
+				long last = volumePageCount - 1;
+
+				if (mStriped)
+				{
+					last = ((last / mPagesPerUnit) * mVolumes.length + i) * mPagesPerUnit + last % mPagesPerUnit;
+				}
+				else
+				{
+					last += i * mPagesPerUnit;
+				}
+
+				pageCount = Math.max(pageCount, last + 1);
+			}
+		}
+
+		return pageCount;
+	}
+
+
+	@Override
+	public int getPageSize() throws IOException
+	{
+		return mVolumes[0].getPageSize();
+	}
+
+
+	@Override
+	public void setPageSize(int aPageSize) throws IOException
+	{
+		for (PageStore volume : mVolumes)
+		{
+			volume.setPageSize(aPageSize);
+		}
+	}
+
+
+	@Override
+	public void truncate(long aPageCount) throws IOException
+	{
+		if (aPageCount < 0)
+		{
+			throw new IllegalArgumentException("Negative page count: " + aPageCount);
+		}
+		if (aPageCount >= getPageCount())
+		{
+			return;
+		}
+
+		for (int i = 0; i < mVolumes.length; i++)
+		{
+			long volumePageCount;
+
+			if (mStriped)
+			{
+				long units = aPageCount / mPagesPerUnit;
+				volumePageCount = (units / mVolumes.length + (i < units % mVolumes.length ? 1 : 0)) * mPagesPerUnit;
+
+				if (units % mVolumes.length == i)
+				{
+					volumePageCount += aPageCount % mPagesPerUnit;
+				}
+			}
+			else if (i < mVolumes.length - 1)
+			{
+				volumePageCount = Math.max(0, Math.min(mPagesPerUnit, aPageCount - i * mPagesPerUnit));
+			}
+			else
+			{
+				volumePageCount = Math.max(0, aPageCount - i * mPagesPerUnit);
+			}
+
+			mVolumes[i].truncate(volumePageCount);
+		}
+
+		// the page count is derived from the volumes, the last page kept must exist
+		if (aPageCount > 0 && getPageCount() < aPageCount)
+		{
+			write(aPageCount - 1, new byte[getPageSize()]);
+		}
+	}
+
+
+	@Override
+	public boolean isTruncateSupported()
+	{
+		for (PageStore volume : mVolumes)
+		{
+			if (!volume.isTruncateSupported())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Closes all volumes.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		IOException exception = null;
+
+		for (PageStore volume : mVolumes)
+		{
+			try
+			{
+				volume.close();
+			}
+			catch (IOException e)
+			{
+				exception = e;
+			}
+		}
+
+		if (exception != null)
+		{
+			throw exception;
+		}
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+		for (PageStore volume : mVolumes)
+		{
+			volume.flush();
+		}
+	}
+
+
+	public int getVolumeCount()
+	{
+		return mVolumes.length;
+	}
+}
@@ -0,0 +1,274 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.terifan.apps.mediagallery.btree.Cache.Entry;
+
+
+/**
+ * A BlockCache keeping page content in direct memory outside of the heap.
+ * Memory is allocated in slabs of direct buffers divided in slots of one page
+ * each. The heap only holds the index of the cached pages, making the cost of
+ * garbage collection independent of the cache size.<p>
+ *
+ * Slabs are allocated on demand and released when the capacity is reduced.
+ * Pages returned by get are copies.
+ */
+class OffHeapBlockCache implements BlockCache
+{
+	private final static int SLAB_SIZE = 64 << 20;
+
+	private int mPageSize;
+	private int mSlotsPerSlab;
+	private long mCapacity;
+	private int mSlotCount;
+	private int mSlabSlots;
+	private int mUsedSlots;
+	private int [] mFreeSlots;
+	private int mFreeSlotCount;
+	private ArrayList<java.nio.ByteBuffer> mSlabs;
+	private HashMap<Long,Entry<Long,Integer>> mEntries;
+	private EvictionPolicy<Long,Integer> mPolicy;
+
+
+	public OffHeapBlockCache(int aPageSize, long aCapacity)
+	{
+		mPageSize = aPageSize;
+		mSlotsPerSlab = Math.max(1, SLAB_SIZE / aPageSize);
+		mSlabs = new ArrayList<>();
+		mEntries = new HashMap<>();
+		mPolicy = new TwoQueueEvictionPolicy<>();
+		mFreeSlots = new int[16];
+
+		setCapacity(aCapacity);
+	}
+
+
+	@Override
+	public synchronized byte [] get(long aPageIndex, boolean aLowPriority)
+	{
+		Entry<Long,Integer> entry = mEntries.get(aPageIndex);
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		mPolicy.accessed(entry, aLowPriority);
+
+		byte [] buffer = new byte[mPageSize];
+
+		int slot = entry.value;
+		mSlabs.get(slot / mSlotsPerSlab).get((slot % mSlotsPerSlab) * mPageSize, buffer, 0, mPageSize);
+
+		return buffer;
+	}
+
+
+	@Override
+	public synchronized void put(long aPageIndex, byte [] aBuffer, boolean aLowPriority)
+	{
+		if (aBuffer.length != mPageSize)
+		{
+			throw new IllegalArgumentException("Bad buffer length: " + aBuffer.length);
+		}
+
+		Entry<Long,Integer> entry = mEntries.get(aPageIndex);
+
+		if (entry != null)
+		{
+			mPolicy.updated(entry, 1, aLowPriority);
+		}
+		else
+		{
+			int slot = allocateSlot();
+
+			if (slot == -1)
+			{
+				return;
+			}
+
+			entry = new Entry<>();
+			entry.key = aPageIndex;
+			entry.value = slot;
+			entry.size = 1;
+
+			mEntries.put(aPageIndex, entry);
+			mPolicy.inserted(entry, aLowPriority);
+		}
+
+		int slot = entry.value;
+		mSlabs.get(slot / mSlotsPerSlab).put((slot % mSlotsPerSlab) * mPageSize, aBuffer, 0, mPageSize);
+	}
+
+
+	@Override
+	public synchronized void remove(long aPageIndex)
+	{
+		Entry<Long,Integer> entry = mEntries.remove(aPageIndex);
+
+		if (entry != null)
+		{
+			mPolicy.removed(entry, false);
+			freeSlot(entry.value);
+		}
+	}
+
+
+	@Override
+	public synchronized void clear()
+	{
+		mEntries.clear();
+		mPolicy.clear();
+		mSlabs.clear();
+		mSlabSlots = 0;
+		mUsedSlots = 0;
+		mFreeSlotCount = 0;
+	}
+
+
+	/**
+	 * Sets the capacity of this cache. When the capacity is reduced pages
+	 * are evicted, the remaining pages moved to the first slots and the
+	 * slabs no longer needed are released.
+	 */
+	@Override
+	public synchronized void setCapacity(long aCapacity)
+	{
+		mCapacity = aCapacity;
+		mSlotCount = (int)Math.min(aCapacity / mPageSize, Integer.MAX_VALUE);
+
+		while (mEntries.size() > mSlotCount)
+		{
+			evict();
+		}
+
+		if (mUsedSlots <= mSlotCount)
+		{
+			return;
+		}
+
+		// slots below the new count that are free receive the pages stored above it
+		int [] free = new int[mFreeSlotCount];
+		int freeCount = 0;
+		for (int i = 0; i < mFreeSlotCount; i++)
+		{
+			if (mFreeSlots[i] < mSlotCount)
+			{
+				free[freeCount++] = mFreeSlots[i];
+			}
+		}
+
+		for (Entry<Long,Integer> entry : mEntries.values())
+		{
+			int slot = entry.value;
+
+			if (slot >= mSlotCount)
+			{
+				int target = free[--freeCount];
+				mSlabs.get(target / mSlotsPerSlab).put((target % mSlotsPerSlab) * mPageSize, mSlabs.get(slot / mSlotsPerSlab), (slot % mSlotsPerSlab) * mPageSize, mPageSize);
+				entry.value = target;
+			}
+		}
+
+		System.arraycopy(free, 0, mFreeSlots, 0, freeCount);
+		mFreeSlotCount = freeCount;
+		mUsedSlots = mSlotCount;
+
+		int slabs = (mSlotCount + mSlotsPerSlab - 1) / mSlotsPerSlab;
+		while (mSlabs.size() > slabs)
+		{
+			mSlabs.remove(mSlabs.size() - 1);
+		}
+
+		mSlabSlots = 0;
+		for (java.nio.ByteBuffer slab : mSlabs)
+		{
+			mSlabSlots += slab.capacity() / mPageSize;
+		}
+	}
+
+
+	@Override
+	public synchronized long getCapacity()
+	{
+		return mCapacity;
+	}
+
+
+	@Override
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+
+
+	private int allocateSlot()
+	{
+		if (mSlotCount == 0)
+		{
+			return -1;
+		}
+		if (mFreeSlotCount > 0)
+		{
+			return mFreeSlots[--mFreeSlotCount];
+		}
+		if (mUsedSlots < mSlotCount)
+		{
+			if (mUsedSlots == mSlabSlots)
+			{
+				allocateSlab();
+			}
+			return mUsedSlots++;
+		}
+
+		evict();
+
+		return mFreeSlots[--mFreeSlotCount];
+	}
+
+
+	private void allocateSlab()
+	{
+		int last = mSlabs.size() - 1;
+
+		if (last >= 0 && mSlabs.get(last).capacity() < mSlotsPerSlab * mPageSize)
+		{
+			// the last slab was sized for a smaller capacity, replace it with a larger one
+			java.nio.ByteBuffer slab = java.nio.ByteBuffer.allocateDirect(Math.min(mSlotsPerSlab, mSlotCount - last * mSlotsPerSlab) * mPageSize);
+			java.nio.ByteBuffer old = mSlabs.get(last);
+			slab.put(0, old, 0, old.capacity());
+			mSlabs.set(last, slab);
+			mSlabSlots += (slab.capacity() - old.capacity()) / mPageSize;
+		}
+		else
+		{
+			int slots = Math.min(mSlotsPerSlab, mSlotCount - mSlabSlots);
+			mSlabs.add(java.nio.ByteBuffer.allocateDirect(slots * mPageSize));
+			mSlabSlots += slots;
+		}
+	}
+
+
+	private void evict()
+	{
+		Entry<Long,Integer> entry = mPolicy.victim(mSlotCount);
+
+		mEntries.remove(entry.key);
+		mPolicy.removed(entry, true);
+		freeSlot(entry.value);
+	}
+
+
+	private void freeSlot(int aSlot)
+	{
+		if (mFreeSlotCount == mFreeSlots.length)
+		{
+			int [] tmp = new int[2 * mFreeSlots.length];
+			System.arraycopy(mFreeSlots, 0, tmp, 0, mFreeSlotCount);
+			mFreeSlots = tmp;
+		}
+
+		mFreeSlots[mFreeSlotCount++] = aSlot;
+	}
+}
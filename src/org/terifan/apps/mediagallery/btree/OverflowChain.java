@@ -0,0 +1,227 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * The content of an element too large to be stored in a data page is stored
+ * in a chain of overflow pages, type 'O', and the element holds the length of
+ * the content and the index of the first page. Every page holds the index of
+ * the previous and the next page of the chain and the first page holds the
+ * key of the element, allowing pages to be moved when the tree is compacted.
+ */
+class OverflowChain
+{
+	final static int HEADER_SIZE = 1+5+5;
+
+
+	private OverflowChain()
+	{
+	}
+
+
+	/**
+	 * Writes the content of an element to new overflow pages.
+	 *
+	 * @return
+	 *   the index of the first page.
+	 */
+	static long write(BTree aTree, byte [] aKey, byte [] aContent) throws IOException
+	{
+		int pageSize = aTree.getPageSize();
+		int firstPageCapacity = pageSize - HEADER_SIZE - 1 - aKey.length;
+		int pageCapacity = pageSize - HEADER_SIZE;
+
+		long [] pages = new long[1 + Math.max(0, (aContent.length - firstPageCapacity + pageCapacity - 1) / pageCapacity)];
+		for (int i = 0; i < pages.length; i++)
+		{
+			pages[i] = aTree.getNextFreePageIndex();
+		}
+
+		for (int i = 0, position = 0; i < pages.length; i++)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+			buffer.put('O');
+			buffer.putNumber(i == 0 ? 0 : pages[i - 1], 5);
+			buffer.putNumber(i + 1 < pages.length ? pages[i + 1] : 0, 5);
+
+			if (i == 0)
+			{
+				buffer.put(aKey.length - 1);
+				buffer.put(aKey);
+			}
+
+			int length = Math.min(aContent.length - position, pageSize - buffer.position());
+			buffer.put(aContent, position, length);
+			position += length;
+
+			aTree.getTransactionLog().write(pages[i], buffer.array());
+		}
+
+		return pages[0];
+	}
+
+
+	/**
+	 * Reads the content of an element stored in overflow pages.
+	 *
+	 * @param aContent
+	 *   destination buffer, at least the length of the content.
+	 */
+	static void read(BTree aTree, DataElement aDataElement, byte [] aContent) throws IOException
+	{
+		walk(aTree, aDataElement, aContent);
+	}
+
+
+	/**
+	 * Returns the indices of the overflow pages of an element.
+	 */
+	static ArrayList<Long> getPages(BTree aTree, DataElement aDataElement) throws IOException
+	{
+		return walk(aTree, aDataElement, null);
+	}
+
+
+	private static ArrayList<Long> walk(BTree aTree, DataElement aDataElement, byte [] aContent) throws IOException
+	{
+		int pageSize = aTree.getPageSize();
+		ArrayList<Long> pages = new ArrayList<>();
+		long previous = 0;
+		long pageIndex = aDataElement.mOverflowPageIndex;
+		int position = 0;
+
+		do
+		{
+			if (pageIndex == 0)
+			{
+				throw new TreeIntegrityException("Overflow chain is too short: key: " + aDataElement);
+			}
+
+			// overflow pages are read once and aren't promoted in the block cache
+			ByteBuffer buffer = ByteBuffer.wrap(aTree.getTransactionLog().read(pageIndex, true));
+
+			if (buffer.getUnsignedByte() != 'O' || buffer.getNumber(5) != previous)
+			{
+				throw new TreeIntegrityException("Bad overflow page: page index: " + pageIndex + ", key: " + aDataElement);
+			}
+
+			long next = buffer.getNumber(5);
+
+			if (previous == 0)
+			{
+				buffer.skip(buffer.getUnsignedByte() + 1);
+			}
+
+			int length = Math.min(aDataElement.mOverflowLength - position, pageSize - buffer.position());
+
+			if (aContent != null)
+			{
+				buffer.get(aContent, position, length);
+			}
+
+			pages.add(pageIndex);
+			position += length;
+			previous = pageIndex;
+			pageIndex = next;
+		}
+		while (position < aDataElement.mOverflowLength);
+
+		if (pageIndex != 0)
+		{
+			throw new TreeIntegrityException("Overflow chain is too long: key: " + aDataElement);
+		}
+
+		return pages;
+	}
+
+
+	/**
+	 * Moves an overflow page to another page index updating the link of the
+	 * neighbouring pages or the element referring to the first page. The
+	 * neighbouring pages must link back to the page before anything is
+	 * written.
+	 *
+	 * @param aToPageIndex
+	 *   the new index of the page or zero to only test the references.
+	 */
+	static BTree.MoveResult move(BTree aTree, long aFromPageIndex, long aToPageIndex) throws IOException
+	{
+		TransactionLog log = aTree.getTransactionLog();
+		byte [] page = Arrays.copyOf(log.read(aFromPageIndex), aTree.getPageSize());
+		ByteBuffer buffer = ByteBuffer.wrap(page);
+
+		buffer.position(1);
+		long previous = buffer.getNumber(5);
+		long next = buffer.getNumber(5);
+
+		byte [] key = null;
+
+		if (previous == 0)
+		{
+			key = new byte[buffer.getUnsignedByte() + 1];
+			buffer.get(key);
+
+			if (!aTree.relocateOverflow(key, aFromPageIndex, 0))
+			{
+				return BTree.MoveResult.UNREFERENCED;
+			}
+		}
+		else if (!isLinked(aTree, previous, 1 + 5, aFromPageIndex))
+		{
+			return BTree.MoveResult.UNREFERENCED;
+		}
+
+		if ((next != 0 && !isLinked(aTree, next, 1, aFromPageIndex)) || aToPageIndex == 0)
+		{
+			return BTree.MoveResult.NOT_MOVED;
+		}
+
+		if (previous == 0)
+		{
+			aTree.relocateOverflow(key, aFromPageIndex, aToPageIndex);
+		}
+		else
+		{
+			setLink(aTree, previous, 1 + 5, aToPageIndex);
+		}
+
+		if (next != 0)
+		{
+			setLink(aTree, next, 1, aToPageIndex);
+		}
+
+		log.write(aToPageIndex, page);
+
+		return BTree.MoveResult.MOVED;
+	}
+
+
+	/**
+	 * Returns true if the page is an overflow page holding the link at the
+	 * offset given.
+	 */
+	private static boolean isLinked(BTree aTree, long aPageIndex, int aOffset, long aLink) throws IOException
+	{
+		if (aPageIndex == aLink)
+		{
+			return false;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(aTree.getTransactionLog().read(aPageIndex));
+
+		return buffer.getUnsignedByte() == 'O' && buffer.position(aOffset).getNumber(5) == aLink;
+	}
+
+
+	private static void setLink(BTree aTree, long aPageIndex, int aOffset, long aLink) throws IOException
+	{
+		byte [] page = Arrays.copyOf(aTree.getTransactionLog().read(aPageIndex), aTree.getPageSize());
+
+		ByteBuffer.wrap(page).position(aOffset).putNumber(aLink, 5);
+
+		aTree.getTransactionLog().write(aPageIndex, page);
+	}
+}
@@ -5,9 +5,16 @@ import java.io.IOException;
 
 abstract class Page
 {
+	/**
+	 * Size of an entry in the slot directory of a page: a two byte offset of
+	 * the element followed by the first two bytes of the element key.
+	 */
+	final static int SLOT_SIZE = 2 + 2;
+
 	protected IndexPage mParent;
 	protected long mPageIndex;
 	protected boolean mTerminated;
+	protected boolean mDirty;
 	protected BTree mTree;
 
 
@@ -48,8 +55,49 @@ abstract class Page
 	}
 
 
+	/**
+	 * Marks this page as modified. A page index is allocated if the page has
+	 * none. Modified pages are held by the tree and serialized once when the
+	 * transaction commits.
+	 */
+	void markDirty() throws IOException
+	{
+		if (mPageIndex == -1)
+		{
+			mPageIndex = mTree.getNextFreePageIndex();
+		}
+
+		mDirty = true;
+		mTree.pageModified(this);
+	}
+
+
+	boolean isDirty()
+	{
+		return mDirty;
+	}
+
+
 	void setPageIndex(long aPageIndex)
 	{
 		mPageIndex = aPageIndex;
 	}
+
+
+	/**
+	 * Returns the first two bytes of a key, zero padded, as stored in the slot
+	 * directory. Two keys with different heads compare in the same order as
+	 * their heads.
+	 */
+	static int keyHead(byte [] aKey)
+	{
+		int head = aKey.length > 0 ? (aKey[0] & 255) << 8 : 0;
+
+		if (aKey.length > 1)
+		{
+			head |= aKey[1] & 255;
+		}
+
+		return head;
+	}
 }
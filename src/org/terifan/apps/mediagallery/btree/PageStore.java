@@ -62,6 +62,25 @@ public interface PageStore extends Closeable
 	public void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException;
 
 
+	/**
+	 * Writes consecutive pages to the PageStore, one page per buffer.
+	 * Implementations may write the pages with a single gathering write.
+	 *
+	 * @param aPageIndex
+	 *   the start page index.
+	 * @param aBuffers
+	 *   the content to be written. Length of each buffer must be the page
+	 *   size.
+	 */
+	public default void write(long aPageIndex, byte [][] aBuffers) throws IOException
+	{
+		for (int i = 0; i < aBuffers.length; i++)
+		{
+			write(aPageIndex + i, aBuffers[i]);
+		}
+	}
+
+
 	/**
 	 * Returns number of pages in this PageStore.
 	 *
@@ -103,4 +122,32 @@ public interface PageStore extends Closeable
 	 * Optional flushing operation that may write unwritten data to disk.
 	 */
 	public void flush() throws IOException;
+
+
+	/**
+	 * Discards all pages from the index provided and shrinks the storage
+	 * accordingly. A page count not less than the number of pages in the
+	 * PageStore has no effect.<p>
+	 *
+	 * Optional method, required to compact a tree.
+	 *
+	 * @param aPageCount
+	 *   number of pages to keep.
+	 * @throws UnsupportedOperationException
+	 *   if the PageStore can't be shrunk.
+	 * @see #isTruncateSupported()
+	 */
+	public default void truncate(long aPageCount) throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+
+	/**
+	 * Returns true if this PageStore implements truncate.
+	 */
+	public default boolean isTruncateSupported()
+	{
+		return false;
+	}
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.terifan.apps.mediagallery.btree;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Random;
 
@@ -35,10 +36,136 @@ public class Test
 				tree.iterator().forEach(k -> System.out.println(new String(k.mKey) + "=" + new String(k.mContent)));
 				tree.close();
 			}
+
+			reusedBuffers();
+			vacuum();
 		}
 		catch (Throwable e)
 		{
 			e.printStackTrace(System.out);
 		}
 	}
+
+
+	/**
+	 * Puts elements through one reused key and value buffer in a single
+	 * transaction and verifies every element after the tree is reopened.
+	 */
+	private static void reusedBuffers() throws Exception
+	{
+		File file = File.createTempFile("btree", ".db");
+		file.delete();
+
+		byte [] key = new byte[8];
+		byte [] value = new byte[16];
+
+		{
+			BTree tree = new BTree(new FilePageStore(file, false, 4096));
+			tree.startTransaction();
+			for (int i = 0; i < 10; i++)
+			{
+				Arrays.fill(key, (byte)('a' + i));
+				Arrays.fill(value, (byte)i);
+				tree.put(key, value);
+			}
+			tree.commitTransaction();
+			tree.close();
+		}
+
+		{
+			BTree tree = new BTree(new FilePageStore(file, false, 4096));
+			for (int i = 0; i < 10; i++)
+			{
+				Arrays.fill(key, (byte)('a' + i));
+				Arrays.fill(value, (byte)i);
+				byte [] content = new byte[value.length];
+				if (tree.get(key, content) != value.length || !Arrays.equals(content, value))
+				{
+					throw new IllegalStateException("Element lost when the put buffer was reused: key: " + new String(key));
+				}
+			}
+			tree.close();
+		}
+
+		file.delete();
+
+		System.out.println("reused buffers: ok");
+	}
+
+
+	/**
+	 * Puts two key ranges, removes the first and compacts the tree. The
+	 * second range is moved towards the beginning of the file, every tenth
+	 * value is stored in overflow pages.
+	 */
+	private static void vacuum() throws Exception
+	{
+		File file = File.createTempFile("btree", ".db");
+		file.delete();
+
+		long length;
+
+		{
+			BTree tree = new BTree(new FilePageStore(file, false, 1024));
+			for (String range : new String[]{"a", "b"})
+			{
+				tree.startTransaction();
+				for (int i = 0; i < 5000; i++)
+				{
+					tree.put((range + i).getBytes(), value(range + i, i % 10 == 0 ? 2000 : 50));
+				}
+				tree.commitTransaction();
+			}
+
+			tree.startTransaction();
+			for (int i = 0; i < 5000; i++)
+			{
+				tree.remove(("a" + i).getBytes());
+			}
+			tree.commitTransaction();
+
+			length = file.length();
+
+			while (tree.vacuum(100))
+			{
+			}
+
+			tree.close();
+		}
+
+		if (file.length() >= length)
+		{
+			throw new IllegalStateException("File wasn't truncated: length: " + file.length() + ", before vacuum: " + length);
+		}
+
+		{
+			BTree tree = new BTree(new FilePageStore(file, false, 1024));
+			for (int i = 0; i < 5000; i++)
+			{
+				byte [] expected = value("b" + i, i % 10 == 0 ? 2000 : 50);
+				byte [] content = new byte[expected.length];
+				if (tree.get(("b" + i).getBytes(), content) != expected.length || !Arrays.equals(content, expected))
+				{
+					throw new IllegalStateException("Element lost by vacuum: key: b" + i);
+				}
+				if (tree.containsKey(("a" + i).getBytes()))
+				{
+					throw new IllegalStateException("Removed element found after vacuum: key: a" + i);
+				}
+			}
+			tree.close();
+		}
+
+		file.delete();
+
+		System.out.println("vacuum: ok");
+	}
+
+
+	private static byte [] value(String aKey, int aLength)
+	{
+		byte [] value = new byte[aLength];
+		new Random(aKey.hashCode()).nextBytes(value);
+		return value;
+	}
 }
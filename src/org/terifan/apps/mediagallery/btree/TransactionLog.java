@@ -1,26 +1,54 @@
 package org.terifan.apps.mediagallery.btree;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
 
 
 class TransactionLog
 {
 	private final static boolean DEBUG = false;
+	private final static int MAX_WRITE_PAGES = 256;
+
+	/**
+	 * Size of the checksum stored last in every page when checksums are
+	 * enabled.
+	 */
+	final static int CHECKSUM_SIZE = 4;
 
 	private TreeMap<Long,byte[]> mPages;
 	private PageStore mPageStore;
 	private boolean mStarted;
 	private BTree mTree;
-	private Cache<Long,byte[]> mCachedClusters;
+	private BlockCache mCachedClusters;
+	private CacheStatistics mStatistics;
+	private boolean mChecksums;
 
 
-	public TransactionLog(BTree aTree, PageStore aPageStore) throws IOException
+	public TransactionLog(BTree aTree, PageStore aPageStore, BTreeOptions aOptions, CacheStatistics aStatistics) throws IOException
 	{
 		mTree = aTree;
+		mStatistics = aStatistics;
 		mPages = new TreeMap<>();
- 		mCachedClusters = new Cache<>(100);
+		if (aOptions.isOffHeapBlockCache())
+		{
+			mCachedClusters = new OffHeapBlockCache(aPageStore.getPageSize(), aOptions.getBlockCacheSize());
+		}
+		else if (aOptions.getBlockCacheConcurrency() > 0)
+		{
+			mCachedClusters = new ConcurrentBlockCache(aOptions.getBlockCacheSize(), aOptions.getBlockCacheConcurrency());
+		}
+		else
+		{
+			mCachedClusters = new HeapBlockCache(aOptions.getBlockCacheSize());
+		}
 		mPageStore = aPageStore;
+		mStatistics.setBlockCache(mCachedClusters);
 /*
 		mCachedClusters.addCacheStateListener(new CacheStateListener() {
 			public void entryAdded(Cache aCache, Object aKey, Object aValue)
@@ -49,6 +77,7 @@ class TransactionLog
 		try
 		{
 			mPages.clear();
+			mCachedClusters.clear();
 			mTree = null;
 			mPages = null;
 			mPageStore.close();
@@ -89,19 +118,125 @@ class TransactionLog
 			throw new IllegalStateException("Log not started.");
 		}
 
-		for (Long pageIndex : mPages.keySet())
+		// pages are sorted by index and runs of consecutive pages are written together
+		ArrayList<byte[]> run = new ArrayList<>();
+		long runStart = -1;
+
+		for (Map.Entry<Long,byte[]> entry : mPages.entrySet())
 		{
+			long pageIndex = entry.getKey();
+
 			if (DEBUG) System.out.println("commit " + pageIndex);
 
-			mPageStore.write(pageIndex, mPages.get(pageIndex));
+			if (runStart + run.size() != pageIndex || run.size() == MAX_WRITE_PAGES)
+			{
+				writeRun(runStart, run);
+				runStart = pageIndex;
+			}
+
+			run.add(entry.getValue());
 		}
 
+		writeRun(runStart, run);
+
 		mPages.clear();
 
 		mStarted = false;
 	}
 
 
+	private void writeRun(long aPageIndex, ArrayList<byte[]> aRun) throws IOException
+	{
+		if (aRun.isEmpty())
+		{
+			return;
+		}
+
+		if (mChecksums)
+		{
+			for (int i = 0; i < aRun.size(); i++)
+			{
+				aRun.set(i, seal(aRun.get(i)));
+			}
+		}
+
+		if (aRun.size() == 1)
+		{
+			mPageStore.write(aPageIndex, aRun.get(0));
+		}
+		else
+		{
+			mPageStore.write(aPageIndex, aRun.toArray(new byte[aRun.size()][]));
+		}
+
+		for (int i = 0; i < aRun.size(); i++)
+		{
+			mCachedClusters.put(aPageIndex + i, aRun.get(i), false);
+		}
+
+		aRun.clear();
+	}
+
+
+	/**
+	 * Returns a copy of a page, extended to the page size of the PageStore,
+	 * with a checksum of the content in the last bytes.
+	 */
+	private byte [] seal(byte [] aBuffer) throws IOException
+	{
+		int pageSize = mPageStore.getPageSize();
+		byte [] buffer = Arrays.copyOf(aBuffer, pageSize);
+
+		ByteBuffer.wrap(buffer).putInt(pageSize - CHECKSUM_SIZE, computeChecksum(buffer));
+
+		return buffer;
+	}
+
+
+	/**
+	 * Throws a TreeIntegrityException if the checksum of a page read from the
+	 * PageStore doesn't match its content.
+	 */
+	void verify(long aIndex, byte [] aBuffer)
+	{
+		if (mChecksums && !isValid(aBuffer))
+		{
+			throw new TreeIntegrityException("Checksum mismatch: page index: " + aIndex);
+		}
+	}
+
+
+	private static boolean isValid(byte [] aBuffer)
+	{
+		return ByteBuffer.wrap(aBuffer).getInt(aBuffer.length - CHECKSUM_SIZE) == computeChecksum(aBuffer);
+	}
+
+
+	private static int computeChecksum(byte [] aBuffer)
+	{
+		CRC32C crc = new CRC32C();
+		crc.update(aBuffer, 0, aBuffer.length - CHECKSUM_SIZE);
+		return (int)crc.getValue();
+	}
+
+
+	/**
+	 * Enables checksums of pages. Pages written are extended with a checksum
+	 * and pages read from the PageStore are verified before they are cached.
+	 * Direct reads and writes of blobs aren't checksummed.
+	 */
+	public void setChecksums(boolean aChecksums)
+	{
+		mChecksums = aChecksums;
+	}
+
+
+	public boolean isChecksums()
+	{
+		return mChecksums;
+	}
+
+
 	public void abort()
 	{
 		mPages.clear();
@@ -110,13 +245,20 @@ class TransactionLog
 	}
 
 
+	/**
+	 * Returns the number of pages written in the current transaction.
+	 */
+	public int getPendingPageCount()
+	{
+		return mPages.size();
+	}
+
+
 	public void write(long aIndex, byte [] aBuffer) throws IOException
 	{
 		if (DEBUG) System.out.println("write  " + aIndex);
 
 		mPages.put(aIndex, aBuffer);
-
-		mCachedClusters.put(aIndex, aBuffer.clone(), 1);
 	}
 
 
@@ -137,25 +279,114 @@ class TransactionLog
 
 	public void read(long aIndex, byte [] aBuffer) throws IOException
 	{
-		if (mPages.containsKey(aIndex))
+		System.arraycopy(read(aIndex), 0, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Returns the content of a page. The array returned may be shared with
+	 * the cache and must not be modified.
+	 */
+	public byte [] read(long aIndex) throws IOException
+	{
+		return read(aIndex, false);
+	}
+
+
+	/**
+	 * Returns the content of a page. The array returned may be shared with
+	 * the cache and must not be modified.
+	 *
+	 * @param aLowPriority
+	 *   true if the page is read by a scan and shouldn't be promoted in the
+	 *   cache
+	 */
+	public byte [] read(long aIndex, boolean aLowPriority) throws IOException
+	{
+		byte [] buffer = mPages.get(aIndex);
+
+		if (buffer != null)
 		{
 			if (DEBUG) System.out.println("cache1 " + aIndex);
 
-			System.arraycopy(mPages.get(aIndex), 0, aBuffer, 0, mPageStore.getPageSize());
+			return buffer;
 		}
-		else if (mCachedClusters.containsKey(aIndex))
+
+		buffer = mCachedClusters.get(aIndex, aLowPriority);
+
+		if (buffer != null)
 		{
 			if (DEBUG) System.out.println("cache2 " + aIndex);
 
-			System.arraycopy(mCachedClusters.get(aIndex), 0, aBuffer, 0, mPageStore.getPageSize());
+			mStatistics.blockHit();
+
+			return buffer;
 		}
-		else
+
+		if (DEBUG) System.out.println("read   " + aIndex);
+
+		mStatistics.blockMiss();
+
+		buffer = new byte[mPageStore.getPageSize()];
+
+		mPageStore.read(aIndex, buffer);
+
+		verify(aIndex, buffer);
+
+		mCachedClusters.put(aIndex, buffer, aLowPriority);
+
+		return buffer;
+	}
+
+
+	public boolean isPrefetchSupported()
+	{
+		return mPageStore instanceof AsyncPageStore;
+	}
+
+
+	public boolean isTruncateSupported()
+	{
+		return mPageStore.isTruncateSupported();
+	}
+
+
+	/**
+	 * Reads the pages provided into the block cache with all reads in flight
+	 * at once. Pages cached or modified in the current transaction are
+	 * skipped. Does nothing unless the PageStore is an AsyncPageStore.
+	 */
+	public void prefetch(long [] aIndices) throws IOException
+	{
+		if (!isPrefetchSupported())
 		{
-			if (DEBUG) System.out.println("read   " + aIndex);
+			return;
+		}
 
-			mPageStore.read(aIndex, aBuffer);
+		AsyncPageStore pageStore = (AsyncPageStore)mPageStore;
+		ArrayList<Long> indices = new ArrayList<>();
+		ArrayList<CompletableFuture<ByteBuffer>> reads = new ArrayList<>();
 
-			mCachedClusters.put(aIndex, aBuffer.clone(), 1);
+		for (long index : aIndices)
+		{
+			if (!mPages.containsKey(index) && mCachedClusters.get(index, true) == null)
+			{
+				if (DEBUG) System.out.println("prefetch " + index);
+
+				indices.add(index);
+				reads.add(pageStore.readAsync(index, ByteBuffer.allocate(pageStore.getPageSize())));
+			}
+		}
+
+		for (int i = 0; i < reads.size(); i++)
+		{
+			byte [] buffer = AsyncFilePageStore.await(reads.get(i)).array();
+
+			// a corrupt page is reported when it's read
+			if (!mChecksums || isValid(buffer))
+			{
+				mCachedClusters.put(indices.get(i), buffer, true);
+			}
 		}
 	}
 
@@ -166,6 +397,43 @@ class TransactionLog
 	}
 
 
+	/**
+	 * Shrinks the PageStore, must not be called with uncommitted pages.
+	 */
+	public void truncate(long aPageCount) throws IOException
+	{
+		if (mPages.size() > 0)
+		{
+			throw new IllegalStateException("Uncommmited data exists.");
+		}
+
+		for (long i = aPageCount, sz = mPageStore.getPageCount(); i < sz; i++)
+		{
+			mCachedClusters.remove(i);
+		}
+
+		mPageStore.truncate(aPageCount);
+	}
+
+
+	public void setCacheSize(long aCacheSize)
+	{
+		mCachedClusters.setCapacity(aCacheSize);
+	}
+
+
+	public long getCacheSize()
+	{
+		return mCachedClusters.getCapacity();
+	}
+
+
+	public int getStorePageSize() throws IOException
+	{
+		return mPageStore.getPageSize();
+	}
+
+
 	public long length() throws IOException
 	{
 		return mPageStore.getPageCount() * mPageStore.getPageSize();
@@ -12,6 +12,7 @@ public class TreeValidator
 	private BitSet refs = new BitSet();
 	private BitSet linkRefPrev = new BitSet();
 	private BitSet linkRefNext = new BitSet();
+	private BitSet overflow = new BitSet();
 	private HashSet<byte[]> keys = new HashSet<>();
 	private BTree mTree;
 
@@ -29,15 +30,22 @@ public class TreeValidator
 		refs = new BitSet();
 		linkRefPrev = new BitSet();
 		linkRefNext = new BitSet();
+		overflow = new BitSet();
 		keys = new HashSet<>();
 
-		if (!integrityCheck(null, 0, usage, refs, keys))
+		if (!integrityCheck(null, mTree.getRootPageIndex(), usage, refs, keys))
 		{
 			return false;
 		}
 
-		for (int i = 0; i < usage.length(); i++)
+		// page zero holds the meta page unless the root is still there
+		for (int i = mTree.getRootPageIndex() == 0 ? 0 : 1; i < usage.length(); i++)
 		{
+			if (overflow.get(i))
+			{
+				continue;
+			}
+
 			boolean terminated = false;
 			try
 			{
@@ -64,7 +72,7 @@ public class TreeValidator
 				return false;
 			}
 
-			if (!terminated && !refs.get(i) && i != 0)
+			if (!terminated && !refs.get(i) && i != mTree.getRootPageIndex())
 			{
 				mIntegrityCheckMessage = "Page never referenced: page index: "+i;
 				return false;
@@ -78,7 +86,7 @@ public class TreeValidator
 
 		try
 		{
-			integrityCheckOrder(mTree.loadPage(null,0), new byte[0], linkRefPrev, linkRefNext);
+			integrityCheckOrder(mTree.loadPage(null, mTree.getRootPageIndex()), new byte[0], linkRefPrev, linkRefNext);
 		}
 		catch (IOException e)
 		{
@@ -175,6 +183,28 @@ public class TreeValidator
 		}
 		aUsage.set((int)page.getPageIndex(), true);
 
+		if (page instanceof DataPage)
+		{
+			for (DataElement element : ((DataPage)page).getElements())
+			{
+				if (element.isOverflow())
+				{
+					for (long pageIndex : OverflowChain.getPages(mTree, element))
+					{
+						if (aUsage.get((int)pageIndex))
+						{
+							mIntegrityCheckMessage = "Page already used: page index: " + pageIndex;
+							return false;
+						}
+
+						aUsage.set((int)pageIndex, true);
+						aRefs.set((int)pageIndex, true);
+						overflow.set((int)pageIndex, true);
+					}
+				}
+			}
+		}
+
 		if (page instanceof IndexPage)
 		{
 			IndexPage indexPage = (IndexPage)page;
@@ -192,7 +222,7 @@ public class TreeValidator
 				return false;
 			}
 
-			if (indexPage.mPageIndex != 0 && indexPage.getElements().isEmpty())
+			if (indexPage.mPageIndex != mTree.getRootPageIndex() && indexPage.getElements().isEmpty())
 			{
 				mIntegrityCheckMessage = "Page has only one child: page index: " + indexPage.mPageIndex;
 				return false;
@@ -0,0 +1,231 @@
+package org.terifan.apps.mediagallery.btree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import org.terifan.apps.mediagallery.btree.Cache.Entry;
+import org.terifan.apps.mediagallery.btree.Cache.EntryList;
+
+
+/**
+ * A 2Q eviction policy (Johnson & Shasha). New entries enter a FIFO queue
+ * (A1in) and are only promoted to the LRU queue (Am) when they are requested
+ * again after having been evicted from the FIFO, which is remembered by a
+ * queue of keys only (A1out). A scan reading each page once will therefore
+ * only cycle the FIFO queue and leave frequently used pages, such as the
+ * upper index pages of a tree, in the cache.<p>
+ *
+ * Entries read again while in the FIFO queue are given a second chance and
+ * moved to the LRU queue instead of being evicted. Without this the hot pages
+ * loaded while the cache fills up would never be promoted as the ghost queue
+ * is flushed by any scan larger than itself. Low priority reads never
+ * promote entries.
+ */
+class TwoQueueEvictionPolicy<K,V> implements EvictionPolicy<K,V>
+{
+	private final static int IN = 1;
+	private final static int MAIN = 2;
+	private final static int IN_REFERENCED = 3;
+
+	private EntryList<K,V> mIn;
+	private EntryList<K,V> mMain;
+	private LinkedHashMap<K,Long> mGhost;
+	private long mInSize;
+	private long mGhostSize;
+	private long mCapacity;
+	private int mInRatio;
+	private int mGhostRatio;
+
+
+	/**
+	 * Constructs a 2Q policy where the FIFO queue holds 25% of the capacity
+	 * and the ghost queue remembers keys for 50% of the capacity.
+	 */
+	public TwoQueueEvictionPolicy()
+	{
+		this(25, 50);
+	}
+
+
+	/**
+	 * @param aInRatio
+	 *   percent of the capacity used by the FIFO queue before entries are
+	 *   evicted from it
+	 * @param aGhostRatio
+	 *   percent of the capacity, in item size, remembered by the ghost queue
+	 */
+	public TwoQueueEvictionPolicy(int aInRatio, int aGhostRatio)
+	{
+		if (aInRatio < 0 || aInRatio > 100 || aGhostRatio < 0)
+		{
+			throw new IllegalArgumentException();
+		}
+
+		mInRatio = aInRatio;
+		mGhostRatio = aGhostRatio;
+		mIn = new EntryList<>();
+		mMain = new EntryList<>();
+		mGhost = new LinkedHashMap<>();
+	}
+
+
+	@Override
+	public void inserted(Entry<K,V> aEntry, boolean aLowPriority)
+	{
+		if (!aLowPriority && mGhost.containsKey(aEntry.key))
+		{
+			mGhostSize -= mGhost.remove(aEntry.key);
+
+			aEntry.queue = MAIN;
+			mMain.linkFirst(aEntry);
+		}
+		else
+		{
+			aEntry.queue = IN;
+			mInSize += aEntry.size;
+
+			if (aLowPriority)
+			{
+				mIn.linkLast(aEntry);
+			}
+			else
+			{
+				mIn.linkFirst(aEntry);
+			}
+		}
+	}
+
+
+	@Override
+	public void accessed(Entry<K,V> aEntry, boolean aLowPriority)
+	{
+		if (aLowPriority)
+		{
+			return;
+		}
+
+		// entries in the FIFO queue are not reordered, only marked for a
+		// second chance when they reach the end of the queue
+		if (aEntry.queue == MAIN)
+		{
+			mMain.moveFirst(aEntry);
+		}
+		else
+		{
+			aEntry.queue = IN_REFERENCED;
+		}
+	}
+
+
+	@Override
+	public void updated(Entry<K,V> aEntry, long aPreviousSize, boolean aLowPriority)
+	{
+		if (aEntry.queue != MAIN)
+		{
+			mInSize += aEntry.size - aPreviousSize;
+		}
+
+		accessed(aEntry, aLowPriority);
+	}
+
+
+	@Override
+	public void removed(Entry<K,V> aEntry, boolean aEvicted)
+	{
+		if (aEntry.queue != MAIN)
+		{
+			mIn.unlink(aEntry);
+			mInSize -= aEntry.size;
+
+			if (aEvicted)
+			{
+				Long prev = mGhost.put(aEntry.key, aEntry.size);
+				mGhostSize += aEntry.size - (prev == null ? 0 : prev);
+				trimGhost();
+			}
+		}
+		else
+		{
+			mMain.unlink(aEntry);
+		}
+
+		aEntry.queue = 0;
+	}
+
+
+	@Override
+	public Entry<K,V> victim(long aCapacity)
+	{
+		mCapacity = aCapacity;
+
+		long limit = aCapacity * mInRatio / 100;
+
+		while (mIn.tail != null && mIn.tail.queue == IN_REFERENCED && mInSize > limit)
+		{
+			Entry<K,V> entry = mIn.tail;
+			mIn.unlink(entry);
+			mInSize -= entry.size;
+			entry.queue = MAIN;
+			mMain.linkFirst(entry);
+		}
+
+		if (mIn.tail != null && (mInSize > limit || mMain.tail == null))
+		{
+			return mIn.tail;
+		}
+
+		return mMain.tail;
+	}
+
+
+	private void trimGhost()
+	{
+		long limit = mCapacity * mGhostRatio / 100;
+
+		for (Iterator<Long> it = mGhost.values().iterator(); mGhostSize > limit && it.hasNext();)
+		{
+			mGhostSize -= it.next();
+			it.remove();
+		}
+	}
+
+
+	@Override
+	public Iterator<Entry<K,V>> iterator()
+	{
+		return new Iterator<Entry<K,V>>()
+		{
+			Entry<K,V> mNext = mMain.head != null ? mMain.head : mIn.head;
+
+			@Override
+			public boolean hasNext()
+			{
+				return mNext != null;
+			}
+
+
+			@Override
+			public Entry<K,V> next()
+			{
+				if (mNext == null)
+				{
+					throw new NoSuchElementException();
+				}
+				Entry<K,V> entry = mNext;
+				mNext = entry.next == null && entry.queue == MAIN ? mIn.head : entry.next;
+				return entry;
+			}
+		};
+	}
+
+
+	@Override
+	public void clear()
+	{
+		mIn.clear();
+		mMain.clear();
+		mGhost.clear();
+		mInSize = 0;
+		mGhostSize = 0;
+	}
+}